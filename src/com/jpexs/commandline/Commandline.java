@@ -344,7 +344,8 @@ public class Commandline {
                         throw new IllegalArgumentException(optionFullName + " requires arguments:" + formatArgTypes(arg_types));
                     }
                     if ((lastModifier == '-' || lastModifier == '+') && lastType != '-') {
-                        if (args[i].startsWith("-")) {
+                        //single dash is a value, usually standard input
+                        if (args[i].startsWith("-") && !args[i].equals("-")) {
                             throw new IllegalArgumentException(optionFullName + " requires arguments:" + formatArgTypes(arg_types));
                         }
                         if (lastType == 's') {
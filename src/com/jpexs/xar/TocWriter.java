@@ -0,0 +1,181 @@
+package com.jpexs.xar;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Writes TOC XML directly to a writer, optionally indented. Text and
+ * attribute values are escaped.
+ *
+ * @author JPEXS
+ */
+public class TocWriter {
+
+    /**
+     * Same format as Xar.DATE_FORMAT, but thread safe.
+     */
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneId.systemDefault());
+
+    private final Writer out;
+    private final boolean indent;
+    private final Deque<String> openElements = new ArrayDeque<>();
+    private boolean hasChildren = false;
+    private boolean empty = true;
+    private long lastDateSecond = Long.MIN_VALUE;
+    private String lastDate;
+
+    /**
+     * Creates the writer.
+     *
+     * @param out Underlying writer
+     * @param indent True to put each element on its own indented line
+     */
+    public TocWriter(Writer out, boolean indent) {
+        this.out = out;
+        this.indent = indent;
+    }
+
+    public void startDocument() throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        empty = false;
+    }
+
+    private void startTag(String name) throws IOException {
+        if (indent && !empty) {
+            newLine(openElements.size());
+        }
+        empty = false;
+        hasChildren = true;
+        out.write('<');
+        out.write(name);
+    }
+
+    private void newLine(int depth) throws IOException {
+        out.write('\n');
+        for (int i = 0; i < depth; i++) {
+            out.write("  ");
+        }
+    }
+
+    private void attribute(String name, String value) throws IOException {
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        escape(value);
+        out.write('"');
+    }
+
+    public void startElement(String name) throws IOException {
+        startTag(name);
+        out.write('>');
+        openElements.push(name);
+        hasChildren = false;
+    }
+
+    public void startElement(String name, String attrName, String attrValue) throws IOException {
+        startTag(name);
+        attribute(attrName, attrValue);
+        out.write('>');
+        openElements.push(name);
+        hasChildren = false;
+    }
+
+    public void endElement() throws IOException {
+        String name = openElements.pop();
+        if (indent && hasChildren) {
+            newLine(openElements.size());
+        }
+        hasChildren = true;
+        out.write("</");
+        out.write(name);
+        out.write('>');
+    }
+
+    /**
+     * Writes element with text content.
+     */
+    public void element(String name, String text) throws IOException {
+        startTag(name);
+        out.write('>');
+        escape(text);
+        out.write("</");
+        out.write(name);
+        out.write('>');
+    }
+
+    public void element(String name, long value) throws IOException {
+        element(name, Long.toString(value));
+    }
+
+    /**
+     * Writes element with attribute and text content.
+     */
+    public void element(String name, String attrName, String attrValue, String text) throws IOException {
+        startTag(name);
+        attribute(attrName, attrValue);
+        out.write('>');
+        escape(text);
+        out.write("</");
+        out.write(name);
+        out.write('>');
+    }
+
+    public void emptyElement(String name, String attrName, String attrValue) throws IOException {
+        startTag(name);
+        attribute(attrName, attrValue);
+        out.write("/>");
+    }
+
+    /**
+     * Writes element with time in TOC date format.
+     *
+     * @param name Element name
+     * @param time Time in milliseconds
+     */
+    public void dateElement(String name, long time) throws IOException {
+        long second = Math.floorDiv(time, 1000);
+        //files of one archive usually share few distinct times
+        if (second != lastDateSecond) {
+            lastDate = DATE_FORMATTER.format(Instant.ofEpochSecond(second));
+            lastDateSecond = second;
+        }
+        element(name, lastDate);
+    }
+
+    private void escape(String text) throws IOException {
+        int start = 0;
+        int len = text.length();
+        for (int i = 0; i < len; i++) {
+            String entity;
+            switch (text.charAt(i)) {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '"':
+                    entity = "&quot;";
+                    break;
+                default:
+                    continue;
+            }
+            out.write(text, start, i - start);
+            out.write(entity);
+            start = i + 1;
+        }
+        out.write(text, start, len - start);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
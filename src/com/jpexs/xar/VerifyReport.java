@@ -0,0 +1,128 @@
+package com.jpexs.xar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of archive verification.
+ *
+ * @author JPEXS
+ */
+public class VerifyReport {
+
+    /**
+     * File which failed verification.
+     */
+    public static class Failure {
+
+        private final String path;
+        private final String reason;
+
+        public Failure(String path, String reason) {
+            this.path = path;
+            this.reason = reason;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return path + ": " + reason;
+        }
+    }
+
+    private final boolean full;
+    private final List<Failure> failures = new ArrayList<>();
+    private int fileCount = 0;
+    private long compressedBytes = 0;
+    private long extractedBytes = 0;
+    private long elapsedNanos = 0;
+
+    VerifyReport(boolean full) {
+        this.full = full;
+    }
+
+    synchronized void addFile(long compressedBytes, long extractedBytes) {
+        this.fileCount++;
+        this.compressedBytes += compressedBytes;
+        this.extractedBytes += extractedBytes;
+    }
+
+    synchronized void addFailure(String path, String reason) {
+        failures.add(new Failure(path, reason));
+    }
+
+    void setElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Checks whether extracted checksums were verified too.
+     *
+     * @return False when only archived checksums were verified
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    public synchronized boolean isValid() {
+        return failures.isEmpty();
+    }
+
+    public synchronized List<Failure> getFailures() {
+        return Collections.unmodifiableList(new ArrayList<>(failures));
+    }
+
+    public synchronized int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Gets number of heap bytes read.
+     *
+     * @return Number of bytes
+     */
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Gets number of decompressed bytes. Zero when only archived checksums
+     * were verified.
+     *
+     * @return Number of bytes
+     */
+    public synchronized long getExtractedBytes() {
+        return extractedBytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Gets heap read throughput.
+     *
+     * @return Bytes per second
+     */
+    public synchronized double getThroughput() {
+        if (elapsedNanos == 0) {
+            return 0;
+        }
+        return compressedBytes * 1000000000.0 / elapsedNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Verified %d files (%s), %d bytes in %.3f s (%.2f MB/s), %d failures",
+                fileCount, full ? "full" : "fast", compressedBytes, elapsedNanos / 1000000000.0,
+                getThroughput() / (1024 * 1024), failures.size());
+    }
+}
@@ -2,6 +2,7 @@ package com.jpexs.xar;
 
 import com.jpexs.commandline.Commandline;
 import com.jpexs.commandline.OptionActionListener;
+import com.jpexs.xar.cache.EntryCache;
 import com.jpexs.xar.checksum.CheckSum;
 import com.jpexs.xar.checksum.errorhandlers.CheckSumErrorHandler;
 import com.jpexs.xar.checksum.MD5CheckSum;
@@ -12,10 +13,25 @@ import com.jpexs.xar.encoding.BZip2Encoding;
 import com.jpexs.xar.encoding.Encoding;
 import com.jpexs.xar.encoding.GZipEncoding;
 import com.jpexs.xar.encoding.NoEncoding;
+import com.jpexs.xar.io.BoundedInputStream;
+import com.jpexs.xar.io.BufferPool;
+import com.jpexs.xar.io.CheckSumOutputStream;
+import com.jpexs.xar.io.FileHeapReader;
+import com.jpexs.xar.io.HeapReader;
+import com.jpexs.xar.io.MappedDigest;
+import com.jpexs.xar.io.MappedHeapReader;
+import com.jpexs.xar.io.NonClosingOutputStream;
+import com.jpexs.xar.io.PooledDeflaterOutputStream;
+import com.jpexs.xar.io.VerifyingInputStream;
+import com.jpexs.xar.io.ZlibPool;
 import com.jpexs.xar.nodes.DirectoryNode;
 import com.jpexs.xar.nodes.FileNode;
 import com.jpexs.xar.nodes.Node;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -26,28 +42,55 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.io.RandomAccessFile;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Formatter;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 import javax.xml.parsers.ParserConfigurationException;
@@ -73,7 +116,7 @@ import org.xml.sax.helpers.DefaultHandler;
  *
  * @author JPEXS
  */
-public class Xar {
+public class Xar implements Closeable {
 
     public static final byte[] MAGIC = new byte[]{0x78, 0x61, 0x72, 0x21}; //"xar!"
     public static final int VERSION = 1;
@@ -84,16 +127,47 @@ public class Xar {
     public static final int CKSUM_ALG_NUM_MD5 = 2;
     public static final int CKSUM_ALG_NUM_OTHER = 3;
 
+    /**
+     * Number of bytes at the beginning of a file compressed to decide whether
+     * the file is compressible.
+     */
+    public static final int ADAPTIVE_SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Maximum size of file data which can be loaded into an array. Larger
+     * files are only streamed.
+     */
+    public static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    /**
+     * Heap entries up to this size are read together with their neighbours
+     * by extract, verify and save.
+     */
+    public static final int COALESCE_MAX_ENTRY = 256 * 1024;
+
+    /**
+     * Maximum size of a single read of coalesced heap entries.
+     */
+    public static final int COALESCE_MAX_READ = 4 * 1024 * 1024;
+
+    /**
+     * Maximum number of unused bytes between coalesced heap entries. Reading
+     * them is cheaper than a seek.
+     */
+    public static final int COALESCE_MAX_GAP = 64 * 1024;
+
     public static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
 
     private long currentOffset = 0;
 
-    private Map<String, Node> allNodes = new TreeMap<>();
-    private List<FileNode> files = new ArrayList<>();
+    private volatile Map<String, Node> allNodes = new TreeMap<>();
+    private volatile List<FileNode> files = new ArrayList<>();
+    private boolean indexFrozen = false;
 
     private int last_file_id = 0;
     private CheckSum checksum;
     private Encoding encoding;
+    private volatile Encoding decodingEncoding;
     private String userName = "root";
     private String group = "root";
     private int defaultGid = 0;
@@ -103,10 +177,30 @@ public class Xar {
 
     private CheckSumErrorHandler checkSumErrorHandler;
 
+    private volatile HeapReader heap;
+    private volatile EntryCache entryCache;
+    private File archiveFile;
+    private long tocOffset;
+    private long heapOffset;
+    /**
+     * Checksum of TOC in the archive file, its length is the size of the
+     * slot at the start of the heap.
+     */
+    private CheckSum storedChecksum;
+    private final Set<FileNode> storedFiles = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean memoryMapped = false;
+    private boolean lazy = false;
+    private boolean coalesceHeap = false;
+    private boolean compactToc = false;
+    private Pattern noCompress;
+    private double adaptiveRatio = 0;
+
     private final static Map<String, CheckSum> supportedChecksums = new HashMap<>();
 
     private final static Map<String, Encoding> supportedEncodings = new HashMap<>();
 
+    private final static SAXParserFactory SAX_PARSER_FACTORY = SAXParserFactory.newInstance();
+
     static {
         CheckSum c;
         c = new NoCheckSum();
@@ -129,6 +223,8 @@ public class Xar {
         e = new NoEncoding();
         supportedEncodings.put(e.getSimpleName(), e);
 
+        SAX_PARSER_FACTORY.setNamespaceAware(true);
+
     }
 
     public static void addEncodingType(Encoding e) {
@@ -147,6 +243,42 @@ public class Xar {
         return supportedChecksums.keySet();
     }
 
+    /**
+     * Gets encoding by its simple name, optionally followed by colon and
+     * parameters, for example "gzip:9" or "bzip2:1".
+     *
+     * @param enc_alg Encoding specification
+     * @return Encoding or null when the encoding type is unknown
+     * @throws IllegalArgumentException When parameters are not valid
+     */
+    public static Encoding getEncoding(String enc_alg) {
+        int pos = enc_alg.indexOf(':');
+        if (pos == -1) {
+            return supportedEncodings.get(enc_alg);
+        }
+        Encoding e = supportedEncodings.get(enc_alg.substring(0, pos));
+        if (e == null) {
+            return null;
+        }
+        return e.withParameters(enc_alg.substring(pos + 1));
+    }
+
+    /**
+     * Sets checksum type of TOC and files added later.
+     *
+     * @param cksum_alg Checksum type
+     */
+    public void setCheckSumType(String cksum_alg) {
+        if (!supportedChecksums.containsKey(cksum_alg)) {
+            throw new IllegalArgumentException("Uknown checksum type: " + cksum_alg);
+        }
+        this.checksum = supportedChecksums.get(cksum_alg);
+    }
+
+    public String getCheckSumType() {
+        return checksum.getName();
+    }
+
     public void setDefaultGid(int gid) {
         this.defaultGid = gid;
     }
@@ -167,6 +299,83 @@ public class Xar {
         this.group = group;
     }
 
+    /**
+     * Sets whether identical files are stored in the heap only once. Such
+     * archive cannot be extracted by streaming readers.
+     *
+     * @param coalesceHeap True to store identical files only once
+     */
+    public void setCoalesceHeap(boolean coalesceHeap) {
+        this.coalesceHeap = coalesceHeap;
+    }
+
+    public boolean isCoalesceHeap() {
+        return coalesceHeap;
+    }
+
+    /**
+     * Sets whether TOC is written without indentation.
+     *
+     * @param compactToc True to write TOC without whitespace between elements
+     */
+    public void setCompactToc(boolean compactToc) {
+        this.compactToc = compactToc;
+    }
+
+    public boolean isCompactToc() {
+        return compactToc;
+    }
+
+    /**
+     * Sets files added later which are stored without compression.
+     *
+     * @param regexp Regular expression searched in path of the file in the
+     * archive or null to compress all files
+     */
+    public void setNoCompress(String regexp) {
+        this.noCompress = regexp == null ? null : Pattern.compile(regexp);
+    }
+
+    /**
+     * Enables storing incompressible files without compression. Sample from
+     * the beginning of each file added later is compressed and when it does
+     * not shrink below the ratio, the file is stored uncompressed.
+     *
+     * @param maxRatio Maximum ratio of compressed to uncompressed sample size
+     * of files which are compressed, 0 to compress all files
+     */
+    public void setAdaptiveCompression(double maxRatio) {
+        this.adaptiveRatio = maxRatio;
+    }
+
+    /**
+     * Sets encoding of files added later.
+     *
+     * @param encoding Encoding
+     */
+    public void setDefaultEncoding(Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Sets encoding used to decode files of the archive which have encoding
+     * of the same name, for example encoding decompressing in parallel.
+     * Files with other encodings are decoded by their own encoding.
+     *
+     * @param encoding Encoding or null to decode by encoding of each file
+     */
+    public void setDecodingEncoding(Encoding encoding) {
+        this.decodingEncoding = encoding;
+    }
+
+    private Encoding getDecodingEncoding(FileNode fn) {
+        Encoding e = decodingEncoding;
+        if (e != null && e.getName().equals(fn.encoding.getName())) {
+            return e;
+        }
+        return fn.encoding;
+    }
+
     public static String byteToHex(final byte[] hash) {
         Formatter formatter = new Formatter();
         for (byte b : hash) {
@@ -180,7 +389,7 @@ public class Xar {
     private static class TocHandler extends DefaultHandler {
 
         protected Xar xar;
-        private String textData = "";
+        private final StringBuilder textData = new StringBuilder();
         long ctime = -1;
         long mtime = -1;
         long atime = -1;
@@ -193,8 +402,8 @@ public class Xar {
         String lastName = "";
         int id = 0;
         String encodingStyle = "";
-        int length;
-        int size;
+        long length;
+        long size;
         boolean inData;
         boolean inCheckSum = false;
         long offset;
@@ -204,31 +413,18 @@ public class Xar {
         String extractedCheckSumStyle = "";
         String checkSumStyle = "";
         CheckSum checksum = supportedChecksums.get("none");
-        long heap_offset;
 
         //List<DirectoryNode> path = new ArrayList<>();
-        protected File file;
         Stack<String> path = new Stack<>();
         Stack<String> typeStack = new Stack<>();
         Stack<String> nameStack = new Stack<>();
-        protected RandomAccessFile raf;
 
         protected String getPathString() {
-            String ret = "";
-            for (String d : path) {
-                if (!ret.equals("")) {
-                    ret += "/";
-                }
-                ret += d;
-            }
-            return ret;
+            return String.join("/", path);
         }
 
-        public TocHandler(File file, Xar xar, long heap_offset) throws IOException {
+        public TocHandler(Xar xar) {
             this.xar = xar;
-            this.heap_offset = heap_offset;
-            raf = new RandomAccessFile(file, "r");
-
         }
 
         @Override
@@ -291,12 +487,12 @@ public class Xar {
                     encodingStyle = attributes.getValue("style");
                     break;
             }
-            textData = "";
+            textData.setLength(0);
         }
 
         @Override
         public void characters(char[] ch, int start, int length) throws SAXException {
-            textData += new String(ch, start, length);
+            textData.append(ch, start, length);
         }
 
         private void addDir() {
@@ -310,13 +506,14 @@ public class Xar {
 
         @Override
         public void endElement(String uri, String localName, String qName) throws SAXException {
+            String text = textData.toString();
             if (inCheckSum) {
 
             }
             switch (localName) {
                 case "creation-time": {
                     try {
-                        xar.creationTime = DATE_FORMAT.parse(textData).getTime();
+                        xar.creationTime = DATE_FORMAT.parse(text).getTime();
                     } catch (ParseException ex) {
                         xar.creationTime = 0L;
                     }
@@ -348,6 +545,10 @@ public class Xar {
                                     break;
                                 }
                             }
+                            if (encoding == null && encodingStyle.equals("application/x-bzip")) {
+                                //written by older versions of jxar
+                                encoding = supportedEncodings.get("bzip2");
+                            }
                         }
                         if (encoding == null) {
                             throw new RuntimeException("Unknown encoding: " + encodingStyle);
@@ -368,23 +569,24 @@ public class Xar {
                         if (checksum == null) {
                             throw new RuntimeException("Unknown checksum: " + checkSumStyle);
                         }
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        byte compressedData[] = new byte[length];
-                        try {
-                            raf.seek(heap_offset + offset);
-                            raf.readFully(compressedData);
-                        } catch (IOException ex) {
-                            //ignore
-                        }
-                        FileNode fnode = new FileNode(name, null, compressedData, encoding, checksum, offset, ctime, mtime, atime, mode, group, gid, user, uid);
+                        FileNode fnode = new FileNode(name, encoding, checksum, offset, length, size, archivedCheckSum, extractedCheckSum, ctime, mtime, atime, mode, group, gid, user, uid);
                         fnode.id = id;
-                        if (!fnode.archivedChecksum.equals(archivedCheckSum) || !fnode.extractedChecksum.equals(extractedCheckSum)) {
-                            path.push(name);
-                            if (xar.checkSumErrorHandler != null) {
-                                xar.checkSumErrorHandler.handleCheckSumError(getPathString());
+                        boolean valid = true;
+                        //entries which do not fit into an array are read as streams
+                        if (!xar.lazy && fitsInMemory(fnode)) {
+                            byte compressedData[];
+                            try {
+                                compressedData = xar.getHeap().read(offset, (int) length);
+                            } catch (IOException ex) {
+                                compressedData = new byte[0];
                             }
+                            path.push(name);
+                            fnode.data = xar.decodeFileData(getPathString(), fnode, compressedData);
                             path.pop();
-                        } else {
+                            fnode.compressedData = compressedData;
+                            valid = fnode.data != null;
+                        }
+                        if (valid) {
                             String baseDir = getPathString();
                             path.push(name);
                             xar.allNodes.put(getPathString(), fnode);
@@ -402,49 +604,49 @@ public class Xar {
                     nameStack.pop();
                     break;
                 case "mode":
-                    mode = Integer.parseInt(textData, 8);
+                    mode = Integer.parseInt(text, 8);
                     break;
                 case "name":
-                    nameStack.push(lastName = textData);
+                    nameStack.push(lastName = text);
                     if (lastType.equals("directory")) {
                         addDir();
                     }
                     break;
                 case "type":
-                    typeStack.push(lastType = textData);
+                    typeStack.push(lastType = text);
                     if (lastType.equals("directory") && !lastName.equals("")) {
                         addDir();
                     }
                     break;
                 case "user":
-                    user = textData;
+                    user = text;
                     break;
                 case "group":
-                    group = textData;
+                    group = text;
                     break;
                 case "uid":
-                    uid = Integer.parseInt(textData);
+                    uid = Integer.parseInt(text);
                     break;
                 case "gid":
-                    gid = Integer.parseInt(textData);
+                    gid = Integer.parseInt(text);
                     break;
                 case "ctime":
                     try {
-                        ctime = DATE_FORMAT.parse(textData).getTime();
+                        ctime = DATE_FORMAT.parse(text).getTime();
                     } catch (ParseException ex) {
                         //ignore
                     }
                     break;
                 case "mtime":
                     try {
-                        mtime = DATE_FORMAT.parse(textData).getTime();
+                        mtime = DATE_FORMAT.parse(text).getTime();
                     } catch (ParseException ex) {
                         //ignore
                     }
                     break;
                 case "atime":
                     try {
-                        atime = DATE_FORMAT.parse(textData).getTime();
+                        atime = DATE_FORMAT.parse(text).getTime();
                     } catch (ParseException ex) {
                         //ignore
                     }
@@ -453,24 +655,24 @@ public class Xar {
             if (inData) {
                 switch (localName) {
                     case "length":
-                        length = Integer.parseInt(textData);
+                        length = Long.parseLong(text);
                         break;
                     case "size":
-                        size = Integer.parseInt(textData);
+                        size = Long.parseLong(text);
                         break;
                     case "offset":
-                        offset = Integer.parseInt(textData);
+                        offset = Long.parseLong(text);
                         break;
                     case "archived-checksum":
-                        archivedCheckSum = textData;
+                        archivedCheckSum = text;
 
                         break;
                     case "extracted-checksum":
-                        extractedCheckSum = textData;
+                        extractedCheckSum = text;
                         break;
                 }
             }
-            textData = "";
+            textData.setLength(0);
         }
 
     }
@@ -489,7 +691,8 @@ public class Xar {
             cksum_alg = "none";
         }
 
-        if (!supportedEncodings.containsKey(enc_alg)) {
+        Encoding enc = getEncoding(enc_alg);
+        if (enc == null) {
             throw new IllegalArgumentException("Uknown encoding type: " + enc_alg);
         }
 
@@ -498,7 +701,7 @@ public class Xar {
         }
 
         this.creationTime = new Date().getTime();
-        this.encoding = supportedEncodings.get(enc_alg);
+        this.encoding = enc;
         this.checksum = supportedChecksums.get(cksum_alg);
 
         currentOffset = checksum.checkSumLength();
@@ -517,63 +720,184 @@ public class Xar {
     }
 
     public Xar(File file, CheckSumErrorHandler checkSumErrorHandler) throws IOException {
+        this(file, checkSumErrorHandler, false);
+    }
+
+    /**
+     * Opens an archive.
+     *
+     * @param file Archive file
+     * @param checkSumErrorHandler Handler of invalid checksums
+     * @param lazy When true, only TOC is read. Entries are decompressed and
+     * verified when they are accessed.
+     * @throws IOException On read error
+     */
+    public Xar(File file, CheckSumErrorHandler checkSumErrorHandler, boolean lazy) throws IOException {
+        this(file, checkSumErrorHandler, lazy, false);
+    }
+
+    /**
+     * Opens an archive. Lazily opened archive keeps the file open until
+     * {@link #close()} is called.
+     *
+     * @param file Archive file
+     * @param checkSumErrorHandler Handler of invalid checksums
+     * @param lazy When true, only TOC is read. Entries are decompressed and
+     * verified when they are accessed.
+     * @param memoryMapped When true, heap is accessed through memory mapping
+     * instead of file reads
+     * @throws IOException On read error
+     */
+    public Xar(File file, CheckSumErrorHandler checkSumErrorHandler, boolean lazy, boolean memoryMapped) throws IOException {
         this.checkSumErrorHandler = checkSumErrorHandler;
-        int header_size = 0;
-        long toc_length_compressed = 0;
-        String toc = "";
+        this.lazy = lazy;
+        this.archiveFile = file;
+        this.memoryMapped = memoryMapped;
+        this.checksum = supportedChecksums.get("none");
+        this.encoding = supportedEncodings.get("gzip");
+        putRoot();
         try (FileInputStream fis = new FileInputStream(file)) {
-            DataInputStream dis = new DataInputStream(fis);
-            byte[] magic = new byte[MAGIC.length];
-            dis.readFully(magic);
-            if (!new String(magic).equals(new String(MAGIC))) {
-                throw new IOException("No XAR file");
-            }
-            header_size = dis.readUnsignedShort();
-            int version = dis.readUnsignedShort();
-            if (version != VERSION) {
-                throw new IOException("Unknown XAR version: " + version);
-            }
-            toc_length_compressed = dis.readLong();
-            //long toc_length_uncompressed = ;
-            dis.readLong();
-            int cksum_alg_n = dis.readInt();
-            int current_header_size = 4 + 2 + 2 + 8 + 8 + 4;
-            if (cksum_alg_n == CKSUM_ALG_NUM_OTHER) {
-                ByteArrayOutputStream chksum_baos = new ByteArrayOutputStream();
-                int c;
-                while ((c = dis.read()) > 0) {
-                    chksum_baos.write(c);
-                    current_header_size++;
-                }
-                current_header_size++; //termination zero                                                
-            }
-            while (current_header_size < header_size) {
-                dis.read();
-                current_header_size++;
-            }
-            byte[] toc_compressed = new byte[(int) toc_length_compressed];
-            dis.readFully(toc_compressed);
-            InflaterInputStream iis = new InflaterInputStream(new ByteArrayInputStream(toc_compressed));
-            ByteArrayOutputStream toc_baos = new ByteArrayOutputStream();
-            int cnt;
-            byte buf[] = new byte[1024];
-            while ((cnt = iis.read(buf)) > 0) {
-                toc_baos.write(buf, 0, cnt);
-            }
-            byte[] toc_bytes = toc_baos.toByteArray();
-            toc = new String(toc_bytes, "UTF-8");
+            readToc(new BufferedInputStream(fis));
+        } catch (IOException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+        if (!lazy) {
+            //all data are loaded
+            close();
         }
+        freezeIndex();
+    }
 
+    /**
+     * Reads header and TOC of an archive from a stream. The stream is left at
+     * the start of the heap. Data of files cannot be read through the
+     * created object, they are read by {@link XarStreamReader}.
+     *
+     * @param is Stream positioned at the start of the archive
+     * @param checkSumErrorHandler Handler of invalid checksums
+     * @throws IOException On read error
+     */
+    Xar(InputStream is, CheckSumErrorHandler checkSumErrorHandler) throws IOException {
+        this.checkSumErrorHandler = checkSumErrorHandler;
+        this.lazy = true;
+        this.checksum = supportedChecksums.get("none");
+        this.encoding = supportedEncodings.get("gzip");
         putRoot();
+        readToc(is);
+        freezeIndex();
+    }
+
+    private void freezeIndex() {
+        storedChecksum = checksum;
+        storedFiles.addAll(files);
+        allNodes = Collections.unmodifiableMap(allNodes);
+        files = Collections.unmodifiableList(files);
+        indexFrozen = true;
+    }
+
+    /**
+     * Reads header and TOC. Bytes after the TOC are not read from the stream.
+     */
+    private void readToc(InputStream is) throws IOException {
+        DataInputStream dis = new DataInputStream(is);
+        byte[] magic = new byte[MAGIC.length];
+        dis.readFully(magic);
+        if (!new String(magic).equals(new String(MAGIC))) {
+            throw new IOException("No XAR file");
+        }
+        int header_size = dis.readUnsignedShort();
+        int version = dis.readUnsignedShort();
+        if (version != VERSION) {
+            throw new IOException("Unknown XAR version: " + version);
+        }
+        long toc_length_compressed = dis.readLong();
+        //long toc_length_uncompressed = ;
+        dis.readLong();
+        int cksum_alg_n = dis.readInt();
+        int current_header_size = 4 + 2 + 2 + 8 + 8 + 4;
+        if (cksum_alg_n == CKSUM_ALG_NUM_OTHER) {
+            ByteArrayOutputStream chksum_baos = new ByteArrayOutputStream();
+            int c;
+            while ((c = dis.read()) > 0) {
+                chksum_baos.write(c);
+                current_header_size++;
+            }
+            current_header_size++; //termination zero                                                
+        }
+        while (current_header_size < header_size) {
+            dis.read();
+            current_header_size++;
+        }
+        tocOffset = header_size;
+        heapOffset = header_size + toc_length_compressed;
+        BoundedInputStream compressedToc = new BoundedInputStream(dis, toc_length_compressed);
+        InputStream tocStream = new InflaterInputStream(compressedToc);
         try {
-            SAXParserFactory spf = SAXParserFactory.newInstance();
-            spf.setNamespaceAware(true);
-            SAXParser saxParser = spf.newSAXParser();
-            XMLReader xmlReader = saxParser.getXMLReader();
-            xmlReader.setContentHandler(new TocHandler(file, this, header_size + toc_length_compressed));
-            xmlReader.parse(new InputSource(new StringReader(toc)));
+            XMLReader xmlReader = newSAXParser().getXMLReader();
+            xmlReader.setContentHandler(new TocHandler(this));
+            xmlReader.parse(new InputSource(tocStream));
         } catch (ParserConfigurationException | SAXException ex) {
+            throw new IOException("Cannot parse TOC", ex);
+        }
+        //parser may stop before the end of compressed TOC
+        byte buf[] = BufferPool.acquire();
+        try {
+            while (compressedToc.read(buf) > -1) {
+            }
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    /**
+     * Index of an opened archive is an immutable snapshot, so it can be read
+     * from multiple threads. The first modification makes a private copy of
+     * the index and of all directory nodes, as their subnodes are modified.
+     * Nodes obtained before see the archive as it was opened. Modifications
+     * are not thread safe.
+     */
+    private void ensureModifiable() {
+        if (indexFrozen) {
+            Map<String, Node> nodes = new TreeMap<>();
+            for (Map.Entry<String, Node> entry : allNodes.entrySet()) {
+                Node node = entry.getValue();
+                nodes.put(entry.getKey(), node instanceof DirectoryNode ? new DirectoryNode((DirectoryNode) node) : node);
+            }
+            for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+                if (entry.getValue() instanceof DirectoryNode) {
+                    String prefix = entry.getKey().isEmpty() ? "" : entry.getKey() + "/";
+                    for (Map.Entry<String, Node> sub : entry.getValue().subnodes.entrySet()) {
+                        Node copy = nodes.get(prefix + sub.getKey());
+                        if (copy != null) {
+                            sub.setValue(copy);
+                        }
+                    }
+                }
+            }
+            allNodes = nodes;
+            files = new ArrayList<>(files);
+            indexFrozen = false;
+        }
+    }
 
+    /**
+     * Releases the archive file. It is opened again when data are read from
+     * the archive.
+     *
+     * @throws IOException On error
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (heap != null) {
+            heap.close();
+            heap = null;
+        }
+    }
+
+    private static SAXParser newSAXParser() throws ParserConfigurationException, SAXException {
+        synchronized (SAX_PARSER_FACTORY) {
+            return SAX_PARSER_FACTORY.newSAXParser();
         }
     }
 
@@ -590,6 +914,7 @@ public class Xar {
         String baseDir = path.contains("/") ? path.substring(0, path.lastIndexOf("/")) : "";
 
         addDirectory(baseDir);
+        ensureModifiable();
         if (!allNodes.get(baseDir).subnodes.containsKey(baseName)) {
             last_file_id++;
             DirectoryNode dnode = new DirectoryNode(baseName);
@@ -620,6 +945,73 @@ public class Xar {
         return add(baseDirPath, Node.getInstance(name, file, checksum, encoding));
     }
 
+    /**
+     * Adds directory with all its contents. Attributes are taken from the
+     * directory walk, file data are read when the archive is saved.
+     *
+     * @param baseDirPath Directory in the archive to add the tree to
+     * @param root Local directory or file
+     * @return Node of the root or null when it already exists
+     * @throws IOException On error
+     */
+    public Node addTree(String baseDirPath, Path root) throws IOException {
+        return addTree(baseDirPath, root, null);
+    }
+
+    /**
+     * Adds directory with all its contents. Attributes are taken from the
+     * directory walk, file data are read when the archive is saved. Excluded
+     * directories are not walked.
+     *
+     * @param baseDirPath Directory in the archive to add the tree to
+     * @param root Local directory or file
+     * @param filter Gets path in the archive and returns false to exclude the
+     * file or directory with its contents, null to include all
+     * @return Node of the root or null when it already exists or is excluded
+     * @throws IOException On error
+     */
+    public Node addTree(String baseDirPath, Path root, Predicate<String> filter) throws IOException {
+        final String base = normalizePath(baseDirPath);
+        final Node[] rootNode = new Node[1];
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            private String archivePath(Path path) {
+                String relative = root.relativize(path).toString().replace(File.separatorChar, '/');
+                Path rootName = root.toAbsolutePath().normalize().getFileName();
+                String name = rootName == null ? "" : rootName.toString();
+                if (!relative.isEmpty()) {
+                    name = name.isEmpty() ? relative : name + "/" + relative;
+                }
+                return base.isEmpty() ? name : (name.isEmpty() ? base : base + "/" + name);
+            }
+
+            private FileVisitResult visit(Path path, BasicFileAttributes attrs) throws IOException {
+                String fullPath = archivePath(path);
+                if (filter != null && !filter.test(fullPath)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                String name = fullPath.contains("/") ? fullPath.substring(fullPath.lastIndexOf("/") + 1) : fullPath;
+                String dir = fullPath.contains("/") ? fullPath.substring(0, fullPath.lastIndexOf("/")) : "";
+                Node node = add(dir, Node.getInstance(name, path, attrs, checksum, encoding));
+                if (path.equals(root)) {
+                    rootNode[0] = node;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                return visit(dir, attrs);
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                return visit(file, attrs);
+            }
+        });
+        return rootNode[0];
+    }
+
     public Node add(String baseDirPath, Node node) {
 
         baseDirPath = normalizePath(baseDirPath);
@@ -627,17 +1019,24 @@ public class Xar {
             return node;
         }
         addDirectory(baseDirPath);
+        ensureModifiable();
         if (!allNodes.get(baseDirPath).subnodes.containsKey(node.name)) {
             last_file_id++;
             node.id = last_file_id;
+            String fullPath = baseDirPath.isEmpty() ? node.name : baseDirPath + "/" + node.name;
             if (node instanceof FileNode) {
-                ((FileNode) node).offset = currentOffset;
-                currentOffset += ((FileNode) node).length;
-                files.add((FileNode) node);
+                FileNode fnode = (FileNode) node;
+                if (fnode.sourceFile != null) {
+                    fnode.encoding = selectEncoding(fullPath, fnode);
+                    fnode.encodingStyle = fnode.encoding.getName();
+                }
+                fnode.offset = currentOffset;
+                currentOffset += fnode.length;
+                files.add(fnode);
             }
-            String fullPath = baseDirPath.isEmpty() ? node.name : baseDirPath + "/" + node.name;
             allNodes.put(fullPath, node);
             allNodes.get(baseDirPath).subnodes.put(node.name, node);
+            evictCached(fullPath);
             if (node.gid == -1) {
                 node.gid = defaultGid;
             }
@@ -668,24 +1067,763 @@ public class Xar {
         return null;
     }
 
+    /**
+     * Selects encoding of source file added to the path.
+     */
+    private Encoding selectEncoding(String path, FileNode f) {
+        Encoding none = supportedEncodings.get("none");
+        if (f.encoding.getName().equals(none.getName())) {
+            return f.encoding;
+        }
+        if (noCompress != null && noCompress.matcher(path).find()) {
+            return none;
+        }
+        if (adaptiveRatio > 0 && !isCompressible(f.sourceFile, f.encoding, adaptiveRatio)) {
+            return none;
+        }
+        return f.encoding;
+    }
+
+    /**
+     * Compresses sample from the beginning of the file.
+     *
+     * @return False when the sample does not shrink below the ratio
+     */
+    private static boolean isCompressible(File file, Encoding encoding, double maxRatio) {
+        byte sample[] = new byte[ADAPTIVE_SAMPLE_SIZE];
+        int length = 0;
+        try (InputStream is = new FileInputStream(file)) {
+            int cnt;
+            while (length < sample.length && (cnt = is.read(sample, length, sample.length - length)) > -1) {
+                length += cnt;
+            }
+        } catch (IOException ex) {
+            //error is reported when the file is saved
+            return true;
+        }
+        if (length == 0) {
+            return true;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
+        try (OutputStream os = encoding.encodeOutputStream(baos)) {
+            os.write(sample, 0, length);
+        } catch (IOException ex) {
+            return true;
+        }
+        return baos.size() <= length * maxRatio;
+    }
+
+    /**
+     * Entries read from the heap by one read. Data of the entries are sliced
+     * from the read bytes.
+     */
+    private static class HeapRun {
+
+        final List<String> paths = new ArrayList<>();
+        final List<FileNode> nodes = new ArrayList<>();
+        long offset;
+        long end;
+        byte[] data;
+
+        HeapRun(String path, FileNode node) {
+            add(path, node);
+            offset = node.offset;
+            end = node.offset + node.length;
+        }
+
+        final void add(String path, FileNode node) {
+            paths.add(path);
+            nodes.add(node);
+            end = Math.max(end, node.offset + node.length);
+        }
+
+        /**
+         * Checks whether the entry can be read together with entries of the
+         * run. Entries must come in ascending offset order.
+         */
+        boolean canAdd(FileNode node) {
+            return node.length <= COALESCE_MAX_ENTRY
+                    && nodes.get(nodes.size() - 1).length <= COALESCE_MAX_ENTRY
+                    && node.offset <= end + COALESCE_MAX_GAP
+                    && Math.max(end, node.offset + node.length) - offset <= COALESCE_MAX_READ;
+        }
+    }
+
+    /**
+     * New location of file data in the heap.
+     */
+    private static class HeapEntry {
+
+        FileNode node;
+        long offset;
+        long length;
+        long size;
+        String archivedChecksum;
+        String extractedChecksum;
+        HeapEntry sameAs;
+
+        HeapEntry(FileNode node) {
+            this.node = node;
+        }
+
+        /**
+         * Points the entry at data of identical entry written before.
+         */
+        void coalesce() {
+            offset = sameAs.offset;
+            length = sameAs.length;
+            size = sameAs.size;
+            archivedChecksum = sameAs.archivedChecksum;
+            extractedChecksum = sameAs.extractedChecksum;
+        }
+
+        void swap() {
+            long oldOffset = node.offset;
+            long oldLength = node.length;
+            long oldSize = node.size;
+            String oldArchivedChecksum = node.archivedChecksum;
+            String oldExtractedChecksum = node.extractedChecksum;
+            node.offset = offset;
+            node.length = length;
+            node.size = size;
+            node.archivedChecksum = archivedChecksum;
+            node.extractedChecksum = extractedChecksum;
+            offset = oldOffset;
+            length = oldLength;
+            size = oldSize;
+            archivedChecksum = oldArchivedChecksum;
+            extractedChecksum = oldExtractedChecksum;
+        }
+    }
+
+    /**
+     * Saves the archive. File data are streamed through the encoder into a
+     * temporary heap file next to the target file, so memory use does not
+     * depend on the size of data. After saving, file data are read from the
+     * saved archive.
+     *
+     * @param file Target file
+     * @throws IOException On read or write error
+     */
     public void save(File file) throws IOException {
+        save(file, null, 0);
+    }
+
+    /**
+     * Saves the archive, compressing added files on the executor. Each file
+     * is compressed into its own temporary file, which is appended to the heap
+     * in the order of files, so the layout of the archive does not depend on
+     * the number of threads. Files already stored in the heap are copied in
+     * the order of their heap offsets.
+     *
+     * @param file Target file
+     * @param executor Executor to compress files on or null to compress them
+     * on the calling thread
+     * @param maxInFlight Maximum number of files being compressed ahead of the
+     * file currently appended to the heap
+     * @throws IOException On read or write error
+     */
+    public void save(File file, Executor executor, int maxInFlight) throws IOException {
+        save(file, executor, maxInFlight, 0);
+    }
+
+    /**
+     * Saves the archive.
+     *
+     * @param tocReserve Number of bytes reserved after compressed TOC for
+     * updates in place
+     */
+    private void save(File file, Executor executor, int maxInFlight, int tocReserve) throws IOException {
+        File heapFile = File.createTempFile("jxar", ".heap", file.getAbsoluteFile().getParentFile());
+        long newHeapOffset;
+        List<HeapEntry> layout = new ArrayList<>();
+        for (FileNode f : files) {
+            layout.add(new HeapEntry(f));
+        }
+        sortByHeapOffset(layout);
+        try {
+            if (coalesceHeap) {
+                coalesce(layout, executor);
+            }
+            if (executor == null) {
+                writeHeap(heapFile, layout);
+            } else {
+                writeHeap(heapFile, layout, executor, Math.max(1, maxInFlight));
+            }
+            for (HeapEntry e : layout) {
+                e.swap();
+            }
+            try {
+                newHeapOffset = writeArchive(file, heapFile, tocReserve);
+            } catch (IOException | RuntimeException ex) {
+                for (HeapEntry e : layout) {
+                    e.swap();
+                }
+                throw ex;
+            }
+        } finally {
+            heapFile.delete();
+        }
+        synchronized (this) {
+            close();
+            archiveFile = file;
+            tocOffset = HEADER_SIZE;
+            heapOffset = newHeapOffset;
+            storedChecksum = checksum;
+        }
+        for (HeapEntry e : layout) {
+            e.node.sourceFile = null;
+        }
+        storedFiles.clear();
+        storedFiles.addAll(files);
+    }
+
+    /**
+     * Writes files added since the archive was opened or saved to the end of
+     * its heap and rewrites only the header and TOC. The archive file is
+     * rewritten with free space reserved after the TOC when the new TOC does
+     * not fit in place of the old one or when the checksum type was changed.
+     * Removed files stay in the heap. Must not be called while the archive is
+     * read from other threads.
+     *
+     * @throws IOException On read or write error
+     */
+    public void saveInPlace() throws IOException {
+        if (archiveFile == null) {
+            throw new IOException("Archive is not saved");
+        }
+        if (!checksum.getName().equals(storedChecksum.getName()) || checksum.checkSumLength() != storedChecksum.checkSumLength()) {
+            //TOC checksum would not fit into its slot and the header would not match
+            relocate();
+            return;
+        }
+        List<HeapEntry> layout = new ArrayList<>();
+        for (FileNode f : files) {
+            if (!storedFiles.contains(f)) {
+                layout.add(new HeapEntry(f));
+            }
+        }
+        close();
+        try (FileChannel channel = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long oldSize = channel.size();
+            try {
+                long offset = oldSize - heapOffset;
+                channel.position(oldSize);
+                try (OutputStream os = new BufferedOutputStream(new NonClosingOutputStream(Channels.newOutputStream(channel)), 65536)) {
+                    for (HeapEntry e : layout) {
+                        writeHeapEntry(e, os, channel, null);
+                        e.offset = offset;
+                        offset += e.length;
+                    }
+                }
+                channel.force(false);
+            } catch (IOException | RuntimeException ex) {
+                channel.truncate(oldSize);
+                throw ex;
+            }
+            for (HeapEntry e : layout) {
+                e.swap();
+                e.node.sourceFile = null;
+                storedFiles.add(e.node);
+            }
+
+            CompressedToc compressedToc = compressToc((int) (heapOffset - tocOffset));
+            if (compressedToc != null) {
+                ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+                lengthBuffer.putLong(compressedToc.uncompressedLength).flip();
+                channel.write(lengthBuffer, 4 + 2 + 2 + 8);
+                channel.write(ByteBuffer.wrap(compressedToc.data), tocOffset);
+                channel.write(ByteBuffer.wrap(checksum.checkSum(compressedToc.data)), heapOffset);
+                return;
+            }
+        }
+        relocate();
+    }
+
+    /**
+     * Rewrites the archive with free space reserved after the TOC.
+     */
+    private void relocate() throws IOException {
+        File target = archiveFile;
+        File tempFile = File.createTempFile("jxar", ".xar", target.getAbsoluteFile().getParentFile());
+        try {
+            int tocLength = (int) (heapOffset - tocOffset);
+            save(tempFile, null, 0, tocLength / 2 + 4096);
+            close();
+            Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tempFile.delete();
+        }
+        synchronized (this) {
+            archiveFile = target;
+        }
+    }
+
+    /**
+     * Removes file or directory with all its contents from the archive.
+     *
+     * @param path Path in the archive
+     * @return Removed node or null when there is no such node
+     */
+    public Node remove(String path) {
+        path = normalizePath(path);
+        if (path.isEmpty()) {
+            return null;
+        }
+        ensureModifiable();
+        Node node = allNodes.remove(path);
+        if (node == null) {
+            return null;
+        }
+        String baseDir = path.contains("/") ? path.substring(0, path.lastIndexOf("/")) : "";
+        allNodes.get(baseDir).subnodes.remove(node.name);
+        Set<Node> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        removed.add(node);
+        String prefix = path + "/";
+        Iterator<Map.Entry<String, Node>> it = allNodes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Node> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                removed.add(entry.getValue());
+                it.remove();
+                evictCached(entry.getKey());
+            }
+        }
+        files.removeIf(removed::contains);
+        storedFiles.removeAll(removed);
+        evictCached(path);
+        return node;
+    }
+
+    /**
+     * Removes cached data of the path, so data of a removed file are not
+     * returned for a file added later at its path.
+     */
+    private void evictCached(String path) {
+        EntryCache cache = entryCache;
+        if (cache == null) {
+            return;
+        }
+        cache.remove(path);
+    }
+
+    /**
+     * Finds entries with the same content, encoding and checksum type as an
+     * entry before them. Added files are hashed on the executor, entries
+     * already in the heap are compared by their extracted checksum.
+     */
+    private void coalesce(List<HeapEntry> layout, Executor executor) throws IOException {
+        String[] keys = new String[layout.size()];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < layout.size(); i++) {
+            int index = i;
+            tasks.add(() -> {
+                keys[index] = contentKey(layout.get(index).node);
+                return null;
+            });
+        }
+        invokeAll(executor == null ? Runnable::run : executor, tasks);
+        Map<String, HeapEntry> index = new HashMap<>();
+        for (int i = 0; i < layout.size(); i++) {
+            if (keys[i] != null) {
+                HeapEntry e = layout.get(i);
+                e.sameAs = index.putIfAbsent(keys[i], e);
+            }
+        }
+    }
+
+    private static String contentKey(FileNode f) throws IOException {
+        String prefix = f.encoding.getName() + ":" + f.checksum.getName() + ":";
+        if (f.sourceFile == null) {
+            if (f.checksum.createMessageDigest() == null || f.extractedChecksum == null || f.extractedChecksum.isEmpty()) {
+                return null;
+            }
+            return prefix + f.size + ":" + f.extractedChecksum;
+        }
+        CheckSum keyChecksum = f.checksum;
+        MessageDigest digest = keyChecksum.startDigest();
+        if (digest == null) {
+            keyChecksum = supportedChecksums.get("sha1");
+            digest = keyChecksum.startDigest();
+            if (digest == null) {
+                return null;
+            }
+            prefix += "sha1:";
+        }
+        long size = 0;
+        byte buf[] = BufferPool.acquire();
+        try (InputStream is = new FileInputStream(f.sourceFile)) {
+            int cnt;
+            while ((cnt = is.read(buf)) > -1) {
+                digest.update(buf, 0, cnt);
+                size += cnt;
+            }
+        } finally {
+            BufferPool.release(buf);
+        }
+        return prefix + size + ":" + byteToHex(keyChecksum.finishDigest(digest));
+    }
+
+    /**
+     * Orders entries stored in the heap by their offset, so they are copied
+     * by sequential reads. Added files keep their positions.
+     */
+    private static void sortByHeapOffset(List<HeapEntry> layout) {
+        List<Integer> positions = new ArrayList<>();
+        List<HeapEntry> stored = new ArrayList<>();
+        for (int i = 0; i < layout.size(); i++) {
+            if (isInHeap(layout.get(i).node)) {
+                positions.add(i);
+                stored.add(layout.get(i));
+            }
+        }
+        stored.sort((a, b) -> Long.compare(a.node.offset, b.node.offset));
+        for (int i = 0; i < positions.size(); i++) {
+            layout.set(positions.get(i), stored.get(i));
+        }
+    }
+
+    /**
+     * Plans reads of entries which are copied from the heap.
+     *
+     * @return Run of each entry
+     */
+    private static Map<FileNode, HeapRun> planRuns(List<HeapEntry> layout) {
+        List<String> paths = new ArrayList<>();
+        List<FileNode> nodes = new ArrayList<>();
+        for (HeapEntry e : layout) {
+            if (e.sameAs == null && isInHeap(e.node)) {
+                paths.add(null);
+                nodes.add(e.node);
+            }
+        }
+        Map<FileNode, HeapRun> runs = new IdentityHashMap<>();
+        for (HeapRun run : planRuns(paths, nodes)) {
+            for (FileNode fn : run.nodes) {
+                runs.put(fn, run);
+            }
+        }
+        return runs;
+    }
+
+    private void writeHeap(File heapFile, List<HeapEntry> layout) throws IOException {
+        long offset = checksum.checkSumLength();
+        Map<FileNode, HeapRun> runs = planRuns(layout);
+        try (FileOutputStream fos = new FileOutputStream(heapFile);
+                OutputStream os = new BufferedOutputStream(fos, 65536)) {
+            for (HeapEntry e : layout) {
+                if (e.sameAs != null) {
+                    e.coalesce();
+                    continue;
+                }
+                writeHeapEntry(e, os, fos.getChannel(), runs.get(e.node));
+                e.offset = offset;
+                offset += e.length;
+            }
+        }
+    }
+
+    private void writeHeap(File heapFile, List<HeapEntry> layout, Executor executor, int maxInFlight) throws IOException {
+        File partDir = heapFile.getParentFile();
+        List<FutureTask<File>> parts = new ArrayList<>();
+        int current = 0;
+        long offset = checksum.checkSumLength();
+        Map<FileNode, HeapRun> runs = planRuns(layout);
+        try (FileOutputStream fos = new FileOutputStream(heapFile);
+                OutputStream os = new BufferedOutputStream(fos, 65536)) {
+            for (; current < layout.size(); current++) {
+                while (parts.size() < layout.size() && parts.size() - current < maxInFlight) {
+                    HeapEntry e = layout.get(parts.size());
+                    FutureTask<File> part = null;
+                    if (e.node.sourceFile != null && e.sameAs == null && !isStored(e.node)) {
+                        part = new FutureTask<>(() -> compressToPart(e, partDir));
+                        executor.execute(part);
+                    }
+                    parts.add(part);
+                }
+                HeapEntry e = layout.get(current);
+                if (e.sameAs != null) {
+                    e.coalesce();
+                    continue;
+                }
+                FutureTask<File> part = parts.get(current);
+                if (part == null) {
+                    writeHeapEntry(e, os, fos.getChannel(), runs.get(e.node));
+                } else {
+                    File partFile = await(part);
+                    try (InputStream is = new FileInputStream(partFile)) {
+                        copy(is, os);
+                    } finally {
+                        partFile.delete();
+                    }
+                }
+                e.offset = offset;
+                offset += e.length;
+            }
+        } finally {
+            for (int i = current; i < parts.size(); i++) {
+                discardPart(parts.get(i));
+            }
+        }
+    }
+
+    private File compressToPart(HeapEntry e, File partDir) throws IOException {
+        File partFile = File.createTempFile("jxar", ".part", partDir);
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(partFile), 65536)) {
+            compressEntry(e, os);
+        } catch (IOException | RuntimeException ex) {
+            partFile.delete();
+            throw ex;
+        }
+        return partFile;
+    }
+
+    /**
+     * Cancels compression of a file which will not be written and deletes its
+     * temporary file.
+     */
+    private static void discardPart(FutureTask<File> part) {
+        if (part == null || part.cancel(false)) {
+            return;
+        }
+        try {
+            part.get().delete();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException ex) {
+            //nothing to delete
+        }
+    }
+
+    /**
+     * Waits for the task and rethrows its failure.
+     */
+    private static <T> T await(FutureTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Compresses source file of the entry and computes its lengths and
+     * checksums.
+     */
+    private static void compressEntry(HeapEntry e, OutputStream os) throws IOException {
+        FileNode f = e.node;
+        try (InputStream is = new FileInputStream(f.sourceFile)) {
+            CheckSumOutputStream archived = new CheckSumOutputStream(new NonClosingOutputStream(os), f.checksum);
+            CheckSumOutputStream extracted = new CheckSumOutputStream(f.encoding.encodeOutputStream(archived), f.checksum);
+            copy(is, extracted);
+            extracted.close();
+            e.length = archived.getCount();
+            e.size = extracted.getCount();
+            e.archivedChecksum = archived.getCheckSumHex();
+            e.extractedChecksum = extracted.getCheckSumHex();
+        }
+    }
+
+    /**
+     * Copies source file of the entry with NoEncoding to the end of the heap
+     * by FileChannel.transferFrom. The checksum is computed from the mapped
+     * file, so data are not copied into Java arrays.
+     */
+    private static void storeEntry(HeapEntry e, FileChannel target) throws IOException {
+        FileNode f = e.node;
+        try (FileChannel source = FileChannel.open(f.sourceFile.toPath(), StandardOpenOption.READ)) {
+            long size = source.size();
+            String checksumHex = "";
+            MessageDigest digest = f.checksum.startDigest();
+            if (digest != null) {
+                MappedDigest.update(digest, source, 0, size);
+                checksumHex = byteToHex(f.checksum.finishDigest(digest));
+            }
+            long position = target.position();
+            long done = 0;
+            while (done < size) {
+                long cnt = target.transferFrom(source, position + done, size - done);
+                if (cnt <= 0) {
+                    throw new IOException("File " + f.sourceFile + " was truncated while archiving");
+                }
+                done += cnt;
+            }
+            target.position(position + size);
+            e.length = size;
+            e.size = size;
+            e.archivedChecksum = checksumHex;
+            e.extractedChecksum = checksumHex;
+        }
+    }
+
+    /**
+     * Checks whether data of the entry are stored without encoding.
+     */
+    private static boolean isStored(FileNode fn) {
+        return fn.encoding instanceof NoEncoding;
+    }
+
+    /**
+     * Writes the entry. Data of the run are read with its first entry and
+     * dropped after its last entry.
+     *
+     * @param os Buffered stream writing to the channel
+     * @param channel Channel of the heap, used to copy stored files directly
+     * @param run Run of the entry or null
+     */
+    private void writeHeapEntry(HeapEntry e, OutputStream os, FileChannel channel, HeapRun run) throws IOException {
+        FileNode f = e.node;
+        if (f.sourceFile != null && isStored(f)) {
+            os.flush();
+            storeEntry(e, channel);
+            return;
+        }
+        if (f.sourceFile != null) {
+            compressEntry(e, os);
+            return;
+        }
+        if (f.compressedData != null) {
+            os.write(f.compressedData);
+        } else {
+            if (run != null && run.nodes.get(0) == f) {
+                loadRun(run);
+            }
+            try (InputStream is = openCompressedStream(run, f)) {
+                copy(is, os);
+            }
+            if (run != null && run.nodes.get(run.nodes.size() - 1) == f) {
+                run.data = null;
+            }
+        }
+        e.length = f.length;
+        e.size = f.size;
+        e.archivedChecksum = f.archivedChecksum;
+        e.extractedChecksum = f.extractedChecksum;
+    }
+
+    private static void copy(InputStream is, OutputStream os) throws IOException {
+        byte buf[] = BufferPool.acquire();
+        try {
+            int cnt;
+            while ((cnt = is.read(buf)) > -1) {
+                os.write(buf, 0, cnt);
+            }
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    /**
+     * Compressed TOC with length of the uncompressed XML.
+     */
+    private static class CompressedToc {
+
+        byte[] data;
+        long uncompressedLength;
+    }
+
+    /**
+     * Compresses TOC.
+     */
+    private CompressedToc compressToc() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CheckSumOutputStream counter = new CheckSumOutputStream(new PooledDeflaterOutputStream(baos, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY), supportedChecksums.get("none"));
+        writeToc(counter);
+        counter.close();
+        CompressedToc result = new CompressedToc();
+        result.data = baos.toByteArray();
+        result.uncompressedLength = counter.getCount();
+        return result;
+    }
+
+    /**
+     * Compresses TOC into exactly slotLength bytes. The XML is followed by
+     * spaces stored in uncompressed deflate blocks which fill the rest of the
+     * slot.
+     *
+     * @return Compressed TOC or null when it does not fit into the slot
+     */
+    private CompressedToc compressToc(int slotLength) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(slotLength);
+        baos.write(0x78);
+        baos.write(0x9c);
+        Adler32 adler = new Adler32();
+        long tocLength;
+        Deflater deflater = ZlibPool.acquireDeflater(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, true);
+        try {
+            DeflaterOutputStream deos = new DeflaterOutputStream(new NonClosingOutputStream(baos), deflater, 65536, true);
+            CheckSumOutputStream counter = new CheckSumOutputStream(new CheckedOutputStream(deos, adler), supportedChecksums.get("none"));
+            writeToc(counter);
+            //sync flush, the stream is not finished
+            counter.flush();
+            tocLength = counter.getCount();
+        } finally {
+            ZlibPool.releaseDeflater(deflater, true);
+        }
+        //stored block has 5 bytes of header, 4 bytes of adler32 follow
+        int free = slotLength - baos.size() - 4;
+        int blocks = Math.max(1, (free + 65539) / 65540);
+        int spaces = free - 5 * blocks;
+        if (spaces < 0) {
+            return null;
+        }
+        CompressedToc result = new CompressedToc();
+        result.uncompressedLength = tocLength + spaces;
+        for (int i = 0; i < blocks; i++) {
+            int n = Math.min(65535, spaces);
+            spaces -= n;
+            baos.write(i == blocks - 1 ? 1 : 0);
+            baos.write(n & 0xff);
+            baos.write(n >>> 8);
+            baos.write(~n & 0xff);
+            baos.write((~n >>> 8) & 0xff);
+            byte[] padding = new byte[n];
+            Arrays.fill(padding, (byte) ' ');
+            baos.write(padding, 0, n);
+            adler.update(padding);
+        }
+        long value = adler.getValue();
+        baos.write((int) (value >>> 24) & 0xff);
+        baos.write((int) (value >>> 16) & 0xff);
+        baos.write((int) (value >>> 8) & 0xff);
+        baos.write((int) value & 0xff);
+        result.data = baos.toByteArray();
+        return result;
+    }
+
+    /**
+     * Writes header, TOC and the heap.
+     *
+     * @return Offset of the heap in the file
+     */
+    private long writeArchive(File file, File heapFile, int tocReserve) throws IOException {
 
         int cksum_alg_n = checksum.getNum();
 
         try (FileOutputStream fos = new FileOutputStream(file)) {
-            DataOutputStream daos = new DataOutputStream(fos);
+            DataOutputStream daos = new DataOutputStream(new BufferedOutputStream(fos, 65536));
             //Note: DataOutputStream writes in network byte order (big-endian), which is what we need
 
-            String toc = getToc();
-
-            ByteArrayOutputStream toc_baos = new ByteArrayOutputStream();
-            DeflaterOutputStream toc_deos = new DeflaterOutputStream(toc_baos);
-            byte[] toc_bytes = toc.getBytes("UTF-8");
-            toc_deos.write(toc_bytes);
-            toc_deos.close();
-            byte[] toc_compressed_bytes = toc_baos.toByteArray();
+            CompressedToc compressedToc = compressToc();
+            if (tocReserve > 0) {
+                compressedToc = compressToc(compressedToc.data.length + tocReserve);
+            }
+            byte[] toc_compressed_bytes = compressedToc.data;
+            long toc_length_uncompressed = compressedToc.uncompressedLength;
             int toc_length_compressed = toc_compressed_bytes.length;
-            int toc_length_uncompressed = toc_bytes.length;
 
             daos.write(MAGIC);
             daos.writeShort(HEADER_SIZE);
@@ -696,29 +1834,52 @@ public class Xar {
             daos.write(toc_compressed_bytes);
             byte cksum[] = checksum.checkSum(toc_compressed_bytes);
             daos.write(cksum);
-            for (FileNode f : files) {
-                daos.write(f.compressedData);
+            try (InputStream is = new FileInputStream(heapFile)) {
+                copy(is, daos);
             }
             daos.close();
+            return HEADER_SIZE + toc_length_compressed;
         }
     }
 
-    public String getToc() {
-        String toc = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
-                + "<xar>"
-                + "<toc>"
-                + "<creation-time>" + DATE_FORMAT.format(creationTime) + "</creation-time>"
-                + (checksum.getName().equals("none") ? "" : ("<checksum style=\"" + checksum.getName() + "\">"
-                        + "<offset>0</offset>"
-                        + "<size>" + checksum.checkSumLength() + "</size>"
-                        + "</checksum>"));
-        for (String k : allNodes.get("").subnodes.keySet()) {
-            toc += allNodes.get("").subnodes.get(k);
+    /**
+     * Writes TOC XML.
+     */
+    private void writeToc(Writer writer) throws IOException {
+        TocWriter w = new TocWriter(writer, !compactToc);
+        w.startDocument();
+        w.startElement("xar");
+        w.startElement("toc");
+        w.dateElement("creation-time", creationTime);
+        if (!checksum.getName().equals("none")) {
+            w.startElement("checksum", "style", checksum.getName());
+            w.element("offset", 0);
+            w.element("size", checksum.checkSumLength());
+            w.endElement();
         }
-        toc += "</toc>";
-        toc += "</xar>";
+        for (Node node : allNodes.get("").subnodes.values()) {
+            node.writeToc(w);
+        }
+        w.endElement();
+        w.endElement();
+        w.flush();
+    }
 
-        return prettyFormat(toc, 2);
+    /**
+     * Writes TOC XML encoded in UTF-8. The stream is not closed.
+     */
+    private void writeToc(OutputStream os) throws IOException {
+        writeToc(new BufferedWriter(new OutputStreamWriter(new NonClosingOutputStream(os), StandardCharsets.UTF_8), 65536));
+    }
+
+    public String getToc() {
+        StringWriter sw = new StringWriter();
+        try {
+            writeToc(sw);
+        } catch (IOException ex) {
+            //StringWriter does not throw
+        }
+        return sw.toString();
     }
 
     public static String prettyFormat(String input, int indent) {
@@ -773,11 +1934,30 @@ public class Xar {
             if (!Arrays.asList("sha1", "md5", "none").contains(tocCksum)) {
                 throw new IllegalArgumentException("Uknown checksum: " + tocCksum);
             }
-            if (!Arrays.asList("gzip", "bzip2", "none").contains(compression)) {
+            Encoding enc = getEncoding(compression);
+            if (enc == null) {
                 throw new IllegalArgumentException("Uknown compression: " + compression);
             }
 
+            int threads = (Integer) ap.getOptionValue("j", 1);
+            ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+
             Xar x = new Xar(compression, tocCksum);
+            if (executor != null && enc instanceof GZipEncoding) {
+                GZipEncoding gzip = (GZipEncoding) enc;
+                x.setDefaultEncoding(new GZipEncoding(executor, gzip.getLevel(), gzip.getStrategy(), GZipEncoding.DEFAULT_BLOCK_SIZE, threads * 2));
+            }
+            if (executor != null && enc instanceof BZip2Encoding) {
+                x.setDefaultEncoding(new BZip2Encoding(executor, ((BZip2Encoding) enc).getBlockSizeLevel(), threads * 2));
+            }
+            x.setCoalesceHeap(ap.isOptionOn("coalesce-heap"));
+            x.setCompactToc(ap.isOptionOn("compact-toc"));
+            if (ap.isOptionOn("no-compress")) {
+                x.setNoCompress(ap.getOptionStrValue("no-compress"));
+            }
+            x.setAdaptiveCompression((Integer) ap.getOptionValue("adaptive-compression", 0) / 100.0);
+            Pattern exclude = ap.isOptionOn("exclude") ? Pattern.compile(ap.getOptionStrValue("exclude")) : null;
+            Predicate<String> filter = exclude == null ? null : p -> !exclude.matcher(p).find();
             for (String f : files) {
                 try {
                     File file = new File(f);
@@ -787,17 +1967,21 @@ public class Xar {
                     }
                     String path = normalizePath(file.getPath());
                     String parentDir = path.contains("/") ? path.substring(0, path.lastIndexOf("/")) : "";
-                    x.add(parentDir, file.getName(), file);
+                    x.addTree(parentDir, file.toPath(), filter);
                 } catch (IOException ex) {
                     System.err.println("Cannot read \"" + f + "\": " + ex.getMessage());
                 }
             }
 
             try {
-                x.save(new File(archive));
+                x.save(new File(archive), executor, threads * 2);
             } catch (IOException ex) {
                 System.err.println("Cannot write \"" + archive + "\": " + ex.getMessage());
                 System.exit(1);
+            } finally {
+                if (executor != null) {
+                    executor.shutdown();
+                }
             }
             System.exit(0);
 
@@ -809,20 +1993,40 @@ public class Xar {
             if (targets.length == 0) {
                 targets = new String[]{"."};
             }
+            if (archive.equals("-")) {
+                //single pass over standard input
+                try (XarStreamReader reader = new XarStreamReader(System.in, new WarningCheckSumErrorHandler())) {
+                    reader.extract(new File(targets[0]));
+                } catch (IOException ex) {
+                    System.err.println("Error extracting standard input: " + ex.getMessage());
+                    System.exit(1);
+                }
+                return;
+            }
+            int threads = (Integer) ap.getOptionValue("j", 1);
+            ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+
             Xar x = null;
             try {
-                x = new Xar(new File(archive));
+                x = new Xar(new File(archive), new WarningCheckSumErrorHandler(), true);
 
             } catch (IOException ex) {
                 System.err.println("Cannot read \"" + archive + "\": " + ex.getMessage());
                 System.exit(1);
             }
+            if (executor != null && supportedEncodings.containsKey("bzip2")) {
+                x.setDecodingEncoding(new BZip2Encoding(executor, threads * 2));
+            }
 
             try {
-                x.extract(new File(targets[0]));
+                x.extract(new File(targets[0]), executor == null ? Runnable::run : executor);
             } catch (IOException ex) {
                 System.err.println("Error extracting \"" + archive + "\": " + ex.getMessage());
                 System.exit(1);
+            } finally {
+                if (executor != null) {
+                    executor.shutdown();
+                }
             }
         },
                 Commandline.REQUIRED_YES);
@@ -831,7 +2035,7 @@ public class Xar {
             Xar x = null;
             String archive = ap.getOptionStrValue("f");
             try {
-                x = new Xar(new File(archive));
+                x = new Xar(new File(archive), new WarningCheckSumErrorHandler(), true);
             } catch (IOException ex) {
                 System.err.println("Cannot read \"" + archive + "\": " + ex.getMessage());
                 System.exit(1);
@@ -841,7 +2045,10 @@ public class Xar {
         },
                 Commandline.REQUIRED_YES);
 
-        ap.addOption("f", "Specifies an archive to operate on [REQUIRED!]", "s<archive>", null, Commandline.REQUIRED_YES);
+        ap.addOption("f", "Specifies an archive to operate on [REQUIRED!]\n"
+                + "With -x, - reads the archive from standard input", "s<archive>", null, Commandline.REQUIRED_YES);
+        ap.addOption("j", "Number of worker threads to use.\n"
+                + "Default: 1", "i<threads>");
         //ap.addOption("v", "Print filenames as they are archived");
         //ap.addOption("n", "Provides a name for a subdocument", "s<name>");
         //ap.addOption("s", "On extract, specifies the file to extract subdocuments to.\nOn archival, specifies an xml file to add as a subdocument.", "s<filename>");
@@ -858,7 +2065,7 @@ public class Xar {
                 Xar x = null;
                 String archive = ap.getOptionStrValue("f");
                 try {
-                    x = new Xar(new File(archive));
+                    x = new Xar(new File(archive), new WarningCheckSumErrorHandler(), true);
                 } catch (IOException ex) {
                     System.err.println("Cannot read \"" + archive + "\": " + ex.getMessage());
                     System.exit(1);
@@ -877,21 +2084,49 @@ public class Xar {
         //ap.addOption("dump-header", "Prints out the xar binary header information");
         ap.addOption("compression", "Specifies the compression type to use.\n"
                 + "Valid values: none, gzip, bzip2\n"
+                + "Level can follow colon: gzip:0 to gzip:9, bzip2:1 to bzip2:9\n"
+                + "Gzip strategy can follow level: gzip:9:filtered, gzip:1:huffman\n"
                 + "Default: gzip", "s<type>");
         //ap.addOption("list-subdocs", "List the subdocuments in the xml header");
         //ap.addOption("extract-subdoc", "Extracts the specified subdocument to a document in cwd named <name>.xml", "s<subdoc>");
-        //ap.addOption("exclude", "POSIX regular expression of files to ignore while archiving.", "s<regexp>");
+        ap.addOption("exclude", "Regular expression of files to ignore while archiving.", "s<regexp>");
         //ap.addOption("rsize", "Specifies the size of the buffer used for read IO operations in bytes.", "i<size>");
-        //ap.addOption("coalesce-heap", "When archived files are identical, only store one copy.\nThis option creates an archive which is not streamable");
+        ap.addOption("coalesce-heap", "When archived files are identical, only store one copy.\nThis option creates an archive which is not streamable");
+        ap.addOption("compact-toc", "Writes the xml header without indentation.");
         //ap.addOption("link-same", "Hardlink identical files");
-        //ap.addOption("no-compress", "POSIX regular expression of files not to archive, but not compress.", "s<regexp>");
+        ap.addOption("no-compress", "Regular expression of files to archive, but not compress.", "s<regexp>");
+        ap.addOption("adaptive-compression", "Files whose first 64 kB do not compress below <percent>\n"
+                + "of their size are archived, but not compressed.", "i<percent>");
+        ap.addOption("verify", "Verifies checksums of all files in an archive", "", (String option, Object[] values, String[] valuesStr) -> {
+            String archive = ap.getOptionStrValue("f");
+            int threads = (Integer) ap.getOptionValue("j", 1);
+            ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+            try (Xar x = new Xar(new File(archive), new WarningCheckSumErrorHandler(), true)) {
+                VerifyReport report = x.verify(executor == null ? Runnable::run : executor, !ap.isOptionOn("fast"));
+                for (VerifyReport.Failure failure : report.getFailures()) {
+                    System.err.println("Failed: " + failure);
+                }
+                System.out.println(report);
+                if (!report.isValid()) {
+                    System.exit(1);
+                }
+            } catch (IOException ex) {
+                System.err.println("Cannot read \"" + archive + "\": " + ex.getMessage());
+                System.exit(1);
+            } finally {
+                if (executor != null) {
+                    executor.shutdown();
+                }
+            }
+        }, Commandline.REQUIRED_ALONE);
+        ap.addOption("fast", "With --verify, only checksums of compressed data are verified");
         ap.addOption("version", "Print xar's version number", "", (String option, Object[] values, String[] valuesStr) -> {
             System.out.println("jxar " + getVersion());
         }, Commandline.REQUIRED_ALONE
         );
 
         ap.disableOptionsTogether("c", "x", "t");
-        ap.disableOptionsTogether("c", "x", "t", "dump-toc");
+        ap.disableOptionsTogether("c", "x", "t", "dump-toc", "verify");
 
         ap.setArgTypes("s<file>*");
         ap.setAppCommandline("java -jar jxar.jar");
@@ -900,6 +2135,7 @@ public class Xar {
     }
 
     public String[] listDirs() {
+        Map<String, Node> allNodes = this.allNodes;
         String ret[] = new String[allNodes.size() - files.size()];
         int pos = 0;
         for (String path : allNodes.keySet()) {
@@ -911,7 +2147,12 @@ public class Xar {
         return ret;
     }
 
+    public Node getNode(String path) {
+        return allNodes.get(normalizePath(path));
+    }
+
     public String[] listFiles() {
+        Map<String, Node> allNodes = this.allNodes;
         String ret[] = new String[files.size()];
         int pos = 0;
         for (String path : allNodes.keySet()) {
@@ -924,30 +2165,494 @@ public class Xar {
     }
 
     public void extract(File outdir) throws IOException {
+        extract(outdir, Runnable::run);
+    }
+
+    /**
+     * Extracts all files. Directories are created first, then files are
+     * decompressed, verified and written by tasks run on the executor. Tasks
+     * are submitted in ascending heap offset order and small neighbouring
+     * files are read from the heap by a single read.
+     *
+     * @param outdir Target directory
+     * @param executor Executor to run extraction of files on
+     * @throws IOException On read or write error
+     */
+    public void extract(File outdir, Executor executor) throws IOException {
+        Map<String, Node> allNodes = this.allNodes;
+        List<String> paths = new ArrayList<>();
+        List<FileNode> nodes = new ArrayList<>();
         for (String path : allNodes.keySet()) {
             Node n = allNodes.get(path);
-            File f = new File(outdir.getAbsolutePath() + "/" + path);
             if (n instanceof FileNode) {
-                try (FileOutputStream fos = new FileOutputStream(f)) {
-                    fos.write(((FileNode) n).data);
+                paths.add(path);
+                nodes.add((FileNode) n);
+            } else {
+                new File(outdir.getAbsolutePath() + "/" + path).mkdirs();
+            }
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (HeapRun run : planRuns(paths, nodes)) {
+            tasks.add(() -> {
+                loadRun(run);
+                try {
+                    for (int i = 0; i < run.nodes.size(); i++) {
+                        String path = run.paths.get(i);
+                        extractFile(path, run.nodes.get(i), new File(outdir.getAbsolutePath() + "/" + path), run);
+                    }
+                } finally {
+                    run.data = null;
+                }
+                return null;
+            });
+        }
+        invokeAll(executor, tasks);
+    }
+
+    /**
+     * Verifies checksums of all files.
+     *
+     * @param executor Executor to run verification of files on
+     * @return Report
+     * @throws IOException When the archive cannot be read
+     */
+    public VerifyReport verify(Executor executor) throws IOException {
+        return verify(executor, true);
+    }
+
+    /**
+     * Verifies checksums of all files. Checksum errors are collected in the
+     * report, CheckSumErrorHandler is not called. Files added since the last
+     * save are not verified. Files are read in ascending heap offset order.
+     *
+     * @param executor Executor to run verification of files on
+     * @param full When false, only archived checksums are verified by hashing
+     * compressed heap data. When true, data are decompressed and extracted
+     * checksums are verified too.
+     * @return Report
+     * @throws IOException When the archive cannot be read
+     */
+    public VerifyReport verify(Executor executor, boolean full) throws IOException {
+        Map<String, Node> allNodes = this.allNodes;
+        VerifyReport report = new VerifyReport(full);
+        List<String> paths = new ArrayList<>();
+        List<FileNode> nodes = new ArrayList<>();
+        for (String path : allNodes.keySet()) {
+            Node n = allNodes.get(path);
+            if (n instanceof FileNode && ((FileNode) n).sourceFile == null) {
+                paths.add(path);
+                nodes.add((FileNode) n);
+            }
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (HeapRun run : planRuns(paths, nodes)) {
+            tasks.add(() -> {
+                loadRun(run);
+                try {
+                    for (int i = 0; i < run.nodes.size(); i++) {
+                        verifyFile(run.paths.get(i), run.nodes.get(i), run, full, report);
+                    }
+                } finally {
+                    run.data = null;
+                }
+                return null;
+            });
+        }
+        long start = System.nanoTime();
+        invokeAll(executor, tasks);
+        report.setElapsedNanos(System.nanoTime() - start);
+        return report;
+    }
+
+    /**
+     * Verifies checksums of one file stored in the archive. Checksum errors
+     * are not passed to CheckSumErrorHandler.
+     *
+     * @param path Path of the file
+     * @param full When false, only archived checksum is verified by hashing
+     * compressed heap data. When true, data are decompressed and extracted
+     * checksum is verified too.
+     * @return False when the file is not stored in the archive, cannot be
+     * read or its checksum does not match
+     * @throws IOException When the archive cannot be read
+     */
+    public boolean verifyEntry(String path, boolean full) throws IOException {
+        path = normalizePath(path);
+        Node n = allNodes.get(path);
+        if (!(n instanceof FileNode) || ((FileNode) n).sourceFile != null) {
+            return false;
+        }
+        VerifyReport report = new VerifyReport(full);
+        verifyFile(path, (FileNode) n, null, full, report);
+        return report.isValid();
+    }
+
+    private void verifyFile(String path, FileNode fn, HeapRun run, boolean full, VerifyReport report) throws IOException {
+        byte buf[] = BufferPool.acquire();
+        int cnt;
+        long extractedBytes = 0;
+        try {
+            if (full) {
+                try (VerifyingInputStream vis = new VerifyingInputStream(openCompressedStream(run, fn), getDecodingEncoding(fn), fn, path, null)) {
+                    while ((cnt = vis.read(buf)) > -1) {
+                        extractedBytes += cnt;
+                    }
+                    if (!vis.isValid()) {
+                        report.addFailure(path, "Invalid checksum");
+                    }
                 }
             } else {
-                f.mkdirs();
+                MessageDigest digest = fn.checksum.startDigest();
+                try (InputStream is = openCompressedStream(run, fn)) {
+                    while ((cnt = is.read(buf)) > -1) {
+                        if (digest != null) {
+                            digest.update(buf, 0, cnt);
+                        }
+                    }
+                }
+                if (digest != null && !byteToHex(fn.checksum.finishDigest(digest)).equals(fn.archivedChecksum)) {
+                    report.addFailure(path, "Invalid archived checksum");
+                }
             }
+        } catch (IOException ex) {
+            report.addFailure(path, "Cannot read data: " + ex.getMessage());
+        } finally {
+            BufferPool.release(buf);
         }
+        report.addFile(fn.length, extractedBytes);
     }
 
+    private void extractFile(String path, FileNode fn, File f, HeapRun run) throws IOException {
+        if (fn.data != null) {
+            try (FileOutputStream fos = new FileOutputStream(f)) {
+                fos.write(fn.data);
+            }
+            return;
+        }
+        if (fn.sourceFile != null) {
+            Files.copy(fn.sourceFile.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        if (isStored(fn) && isInHeap(fn) && fn.length == fn.size && (run == null || run.data == null)) {
+            extractStoredFile(path, fn, f);
+            return;
+        }
+        VerifyingInputStream vis = new VerifyingInputStream(openCompressedStream(run, fn), getDecodingEncoding(fn), fn, path, checkSumErrorHandler);
+        try (FileOutputStream fos = new FileOutputStream(f)) {
+            copy(vis, fos);
+        } catch (IOException | RuntimeException ex) {
+            //do not leave partially decoded file
+            f.delete();
+            throw ex;
+        } finally {
+            vis.close();
+        }
+        if (!vis.isValid()) {
+            f.delete();
+        }
+    }
+
+    /**
+     * Copies entry with NoEncoding from the heap to the file by
+     * FileChannel.transferTo. The checksum is computed from the heap before
+     * the copy, so data of a damaged entry are not written.
+     */
+    private void extractStoredFile(String path, FileNode fn, File f) throws IOException {
+        HeapReader heap = getHeap();
+        MessageDigest digest = fn.checksum.startDigest();
+        if (digest != null) {
+            heap.digest(fn.offset, fn.length, digest);
+            String checksumHex = byteToHex(fn.checksum.finishDigest(digest));
+            if (!checksumHex.equals(fn.archivedChecksum) || !checksumHex.equals(fn.extractedChecksum)) {
+                f.delete();
+                if (checkSumErrorHandler != null) {
+                    checkSumErrorHandler.handleCheckSumError(path);
+                }
+                return;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            heap.transferTo(fn.offset, fn.length, channel);
+        } catch (IOException | RuntimeException ex) {
+            f.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Runs tasks on the executor and waits for all of them. Tasks which were
+     * not started yet are cancelled after the first failure.
+     */
+    private static void invokeAll(Executor executor, List<? extends Callable<Void>> tasks) throws IOException {
+        List<FutureTask<Void>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            FutureTask<Void> future = new FutureTask<>(task);
+            futures.add(future);
+            executor.execute(future);
+        }
+        Throwable error = null;
+        for (FutureTask<Void> future : futures) {
+            if (error != null) {
+                future.cancel(false);
+            }
+            try {
+                future.get();
+            } catch (CancellationException ex) {
+                //cancelled after previous error
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                if (error == null) {
+                    error = ex.getCause();
+                }
+            }
+        }
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+    }
+
+    /**
+     * Gets uncompressed data of the file.
+     *
+     * @param name Path of the file
+     * @return Data or null when the file does not exist, its checksum does not
+     * match or it is larger than MAX_ARRAY_LENGTH; use openEntry for such
+     * files
+     */
     public byte[] getFileData(String name) {
-        if (!allNodes.containsKey(name)) {
+        Node n = allNodes.get(name);
+        if (!(n instanceof FileNode)) {
             return null;
         }
+        FileNode fn = (FileNode) n;
+        EntryCache cache = entryCache;
+        if (fn.data != null || fn.sourceFile != null || fn.compressedData != null || cache == null) {
+            //only data read from the heap are cached
+            return loadFileData(name, fn);
+        }
+        byte[] data = cache.get(name);
+        if (data == null) {
+            data = loadFileData(name, fn);
+            if (data != null) {
+                cache.put(name, data);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Sets cache of decompressed data used by getFileData and openEntry of
+     * lazily opened archives. Returned arrays are shared with the cache and
+     * must not be modified.
+     *
+     * @param entryCache Cache or null to disable caching
+     */
+    public void setEntryCache(EntryCache entryCache) {
+        this.entryCache = entryCache;
+    }
+
+    public EntryCache getEntryCache() {
+        return entryCache;
+    }
+
+    /**
+     * Opens uncompressed data of the file for reading. Data are read from the
+     * archive and decompressed as the stream is consumed. Checksums are
+     * verified when the end of stream is reached.
+     *
+     * @param name Path of the file
+     * @return Stream or null when there is no such file
+     * @throws IOException On read error
+     */
+    public InputStream openEntry(String name) throws IOException {
         Node n = allNodes.get(name);
-        if (n instanceof FileNode) {
-            FileNode fn = (FileNode) n;
+        if (!(n instanceof FileNode)) {
+            return null;
+        }
+        FileNode fn = (FileNode) n;
+        if (fn.data != null) {
+            return new ByteArrayInputStream(fn.data);
+        }
+        if (fn.sourceFile != null) {
+            return new FileInputStream(fn.sourceFile);
+        }
+        EntryCache cache = entryCache;
+        if (cache != null) {
+            byte[] data = cache.get(name);
+            if (data != null) {
+                return new ByteArrayInputStream(data);
+            }
+        }
+        return openVerifyingStream(name, fn);
+    }
+
+    private VerifyingInputStream openVerifyingStream(String path, FileNode fn) throws IOException {
+        return new VerifyingInputStream(openCompressedStream(fn), getDecodingEncoding(fn), fn, path, checkSumErrorHandler);
+    }
+
+    private InputStream openCompressedStream(FileNode fn) throws IOException {
+        if (fn.compressedData != null) {
+            return new ByteArrayInputStream(fn.compressedData);
+        }
+        return getHeap().openStream(fn.offset, fn.length);
+    }
+
+    /**
+     * Opens compressed data of an entry of the run, sliced from data of the
+     * run when they were read.
+     */
+    private InputStream openCompressedStream(HeapRun run, FileNode fn) throws IOException {
+        if (run == null || run.data == null || !isInHeap(fn)) {
+            return openCompressedStream(fn);
+        }
+        return new ByteArrayInputStream(run.data, (int) (fn.offset - run.offset), (int) fn.length);
+    }
+
+    /**
+     * Reads data of all entries of the run at once. When the read fails,
+     * entries are read one by one, so the error is reported for the entry
+     * which cannot be read.
+     */
+    private void loadRun(HeapRun run) {
+        if (run.nodes.size() < 2 || !isInHeap(run.nodes.get(0))) {
+            return;
+        }
+        try {
+            run.data = getHeap().read(run.offset, (int) (run.end - run.offset));
+        } catch (IOException ex) {
+            run.data = null;
+        }
+    }
+
+    private static boolean isInHeap(FileNode fn) {
+        return fn.data == null && fn.sourceFile == null && fn.compressedData == null;
+    }
+
+    /**
+     * Groups entries into runs read in ascending heap offset order. Small
+     * entries close to each other share a run, other entries get a run of
+     * their own. Entries not stored in the heap come first.
+     *
+     * @param paths Paths of entries, items may be null
+     * @param nodes Entries
+     * @return Runs
+     */
+    private static List<HeapRun> planRuns(List<String> paths, List<FileNode> nodes) {
+        List<HeapRun> runs = new ArrayList<>();
+        List<Integer> inHeap = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (isInHeap(nodes.get(i))) {
+                inHeap.add(i);
+            } else {
+                runs.add(new HeapRun(paths.get(i), nodes.get(i)));
+            }
+        }
+        inHeap.sort((a, b) -> Long.compare(nodes.get(a).offset, nodes.get(b).offset));
+        HeapRun run = null;
+        for (int i : inHeap) {
+            FileNode fn = nodes.get(i);
+            if (run != null && run.canAdd(fn)) {
+                run.add(paths.get(i), fn);
+            } else {
+                run = new HeapRun(paths.get(i), fn);
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    private HeapReader getHeap() throws IOException {
+        HeapReader heap = this.heap;
+        if (heap == null) {
+            synchronized (this) {
+                heap = this.heap;
+                if (heap == null) {
+                    if (archiveFile == null) {
+                        throw new IOException("Archive is not saved");
+                    }
+                    heap = memoryMapped ? new MappedHeapReader(archiveFile, heapOffset) : new FileHeapReader(archiveFile, heapOffset);
+                    this.heap = heap;
+                }
+            }
+        }
+        return heap;
+    }
+
+    private byte[] readCompressedData(FileNode fn) throws IOException {
+        if (!fitsInMemory(fn)) {
+            throw new IOException("Entry is too large to be read into memory");
+        }
+        return getHeap().read(fn.offset, (int) fn.length);
+    }
+
+    /**
+     * Checks whether both compressed and uncompressed data of the entry fit
+     * into an array.
+     */
+    private static boolean fitsInMemory(FileNode fn) {
+        return fn.length <= MAX_ARRAY_LENGTH && fn.size <= MAX_ARRAY_LENGTH;
+    }
+
+    /**
+     * Gets uncompressed data of the node. Lazily opened nodes are read from
+     * archive, decompressed and verified on every call.
+     */
+    private byte[] loadFileData(String path, FileNode fn) {
+        if (fn.data != null) {
             return fn.data;
-        } else {
+        }
+        if (!fitsInMemory(fn)) {
+            return null;
+        }
+        if (fn.sourceFile != null) {
+            try {
+                return Files.readAllBytes(fn.sourceFile.toPath());
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+        byte[] compressedData = fn.compressedData;
+        if (compressedData == null) {
+            try {
+                compressedData = readCompressedData(fn);
+            } catch (IOException ex) {
+                compressedData = new byte[0];
+            }
+        }
+        return decodeFileData(path, fn, compressedData);
+    }
+
+    /**
+     * Decompresses data and verifies them against checksums from TOC.
+     *
+     * @return Uncompressed data or null when checksum does not match
+     */
+    private byte[] decodeFileData(String path, FileNode fn, byte[] compressedData) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((int) Math.max(0, Math.min(fn.size, MAX_ARRAY_LENGTH)));
+        //extracted checksum is computed as data are decoded
+        CheckSumOutputStream extracted = new CheckSumOutputStream(baos, fn.checksum);
+        try (InputStream is = getDecodingEncoding(fn).decodeInputStream(new ByteArrayInputStream(compressedData))) {
+            copy(is, extracted);
+        } catch (IOException ex) {
+            //ignore
+        }
+        byte[] data = baos.toByteArray();
+        if (!byteToHex(fn.checksum.checkSum(compressedData)).equals(fn.archivedChecksum)
+                || !extracted.getCheckSumHex().equals(fn.extractedChecksum)) {
+            if (checkSumErrorHandler != null) {
+                checkSumErrorHandler.handleCheckSumError(path);
+            }
             return null;
         }
+        return data;
     }
 
     protected void printNode(PrintStream out, Node d, int level) {
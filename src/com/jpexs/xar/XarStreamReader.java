@@ -0,0 +1,257 @@
+package com.jpexs.xar;
+
+import com.jpexs.xar.checksum.errorhandlers.CheckSumErrorHandler;
+import com.jpexs.xar.io.BoundedInputStream;
+import com.jpexs.xar.io.BufferPool;
+import com.jpexs.xar.io.VerifyingInputStream;
+import com.jpexs.xar.nodes.FileNode;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads an archive from a stream which cannot seek, for example a pipe, in a
+ * single pass. Header and TOC are read when the reader is created, then files
+ * are returned in the order of their heap offsets while the stream passes
+ * their data. Gaps between files are skipped.
+ *
+ * Data of a file are available only until the next file is requested. Files
+ * sharing data with a file returned before (archives saved with coalesced
+ * heap) cannot be read, {@link #extract(File)} copies them from the file
+ * extracted before.
+ *
+ * @author JPEXS
+ */
+public class XarStreamReader implements Closeable {
+
+    private final InputStream in;
+    private final Xar archive;
+    private final CheckSumErrorHandler checkSumErrorHandler;
+    private final List<Entry> entries = new ArrayList<>();
+    private int nextIndex = 0;
+    private long position = 0;
+    private Entry current;
+
+    /**
+     * File of the archive returned by the reader.
+     */
+    public class Entry {
+
+        private final String path;
+        private final FileNode node;
+        private boolean passed;
+        private BoundedInputStream data;
+        private VerifyingInputStream stream;
+
+        private Entry(String path, FileNode node) {
+            this.path = path;
+            this.node = node;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public FileNode getNode() {
+            return node;
+        }
+
+        /**
+         * Checks whether data of the file were passed before the file was
+         * returned, so they cannot be read.
+         *
+         * @return True when data cannot be read
+         */
+        public boolean isPassed() {
+            return passed;
+        }
+
+        /**
+         * Opens stream of uncompressed data. Checksums are verified when the
+         * end of data is reached. The stream is valid until the next file is
+         * requested.
+         *
+         * @return Stream
+         * @throws IOException When data were passed or the stream was already
+         * opened
+         */
+        public InputStream openStream() throws IOException {
+            if (passed) {
+                throw new IOException("Data of \"" + path + "\" were already passed, the archive is not streamable");
+            }
+            if (stream != null || current != this) {
+                throw new IOException("Data of \"" + path + "\" can be read only once");
+            }
+            stream = new VerifyingInputStream(data, node, path, checkSumErrorHandler);
+            return stream;
+        }
+
+        /**
+         * Checks whether checksums matched. Valid only after all data of the
+         * file were read.
+         *
+         * @return False when checksum did not match
+         */
+        public boolean isValid() {
+            return stream != null && stream.isValid();
+        }
+    }
+
+    /**
+     * Reads header and TOC of the archive.
+     *
+     * @param in Stream of the archive
+     * @param checkSumErrorHandler Handler of invalid checksums
+     * @throws IOException On read error
+     */
+    public XarStreamReader(InputStream in, CheckSumErrorHandler checkSumErrorHandler) throws IOException {
+        this.in = new BufferedInputStream(in, BufferPool.BUFFER_SIZE);
+        this.checkSumErrorHandler = checkSumErrorHandler;
+        this.archive = new Xar(this.in, checkSumErrorHandler);
+        for (String path : archive.listFiles()) {
+            entries.add(new Entry(path, (FileNode) archive.getNode(path)));
+        }
+        //stable sort keeps files sharing data in path order
+        entries.sort((a, b) -> Long.compare(a.node.offset, b.node.offset));
+    }
+
+    /**
+     * Gets the archive read from TOC. It can be used to list files and
+     * directories, but not to read data of files.
+     *
+     * @return Archive
+     */
+    public Xar getArchive() {
+        return archive;
+    }
+
+    /**
+     * Skips rest of the current file and moves to the next file in heap
+     * order.
+     *
+     * @return File or null when there are no more files
+     * @throws IOException On read error
+     */
+    public Entry next() throws IOException {
+        if (current != null && current.data != null) {
+            drain(current.data);
+            position = current.node.offset + current.node.length;
+            current.data = null;
+        }
+        current = null;
+        if (nextIndex == entries.size()) {
+            return null;
+        }
+        Entry entry = entries.get(nextIndex++);
+        if (entry.node.offset < position) {
+            entry.passed = true;
+        } else {
+            skipFully(in, entry.node.offset - position);
+            position = entry.node.offset;
+            entry.data = new BoundedInputStream(in, entry.node.length);
+        }
+        current = entry;
+        return entry;
+    }
+
+    private static void drain(InputStream is) throws IOException {
+        byte buf[] = BufferPool.acquire();
+        try {
+            while (is.read(buf) > -1) {
+            }
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    private static void skipFully(InputStream is, long count) throws IOException {
+        byte buf[] = null;
+        try {
+            while (count > 0) {
+                long cnt = is.skip(count);
+                if (cnt > 0) {
+                    count -= cnt;
+                    continue;
+                }
+                //skip of a pipe may return 0 before the end of stream
+                if (buf == null) {
+                    buf = BufferPool.acquire();
+                }
+                int read = is.read(buf, 0, (int) Math.min(buf.length, count));
+                if (read == -1) {
+                    throw new EOFException("Unexpected end of archive");
+                }
+                count -= read;
+            }
+        } finally {
+            if (buf != null) {
+                BufferPool.release(buf);
+            }
+        }
+    }
+
+    /**
+     * Extracts all remaining files while reading the stream. Files with
+     * invalid checksum are deleted after the checksum error handler is
+     * called.
+     *
+     * @param outdir Target directory
+     * @throws IOException On read or write error or when data of a file were
+     * passed
+     */
+    public void extract(File outdir) throws IOException {
+        for (String path : archive.listDirs()) {
+            new File(outdir.getAbsolutePath() + "/" + path).mkdirs();
+        }
+        Entry previous = null;
+        File previousFile = null;
+        Entry entry;
+        while ((entry = next()) != null) {
+            File f = new File(outdir.getAbsolutePath() + "/" + entry.getPath());
+            if (entry.isPassed() && previous != null && previous.isValid()
+                    && previous.node.offset == entry.node.offset && previous.node.length == entry.node.length) {
+                //identical data were stored once
+                Files.copy(previousFile.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                continue;
+            }
+            byte buf[] = BufferPool.acquire();
+            try (InputStream is = entry.openStream();
+                    OutputStream os = new FileOutputStream(f)) {
+                int cnt;
+                while ((cnt = is.read(buf)) > -1) {
+                    os.write(buf, 0, cnt);
+                }
+            } catch (IOException | RuntimeException ex) {
+                //do not leave partially decoded file
+                f.delete();
+                throw ex;
+            } finally {
+                BufferPool.release(buf);
+            }
+            if (!entry.isValid()) {
+                f.delete();
+            }
+            previous = entry;
+            previousFile = f;
+        }
+    }
+
+    /**
+     * Closes the underlying stream.
+     *
+     * @throws IOException On error
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -1,13 +1,21 @@
 package com.jpexs.xar.ant;
 
 import com.jpexs.xar.Xar;
+import com.jpexs.xar.io.BufferPool;
+import com.jpexs.xar.nodes.FileNode;
 import com.jpexs.xar.nodes.Node;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.regex.Pattern;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
@@ -25,7 +33,18 @@ public class XarTask {
     private boolean verbose = false;
     private String compression;
     private String checksum;
+    private boolean incremental = false;
+    private boolean compareContent = false;
+    private String noCompress;
+    private int adaptiveCompression = 0;
+    private boolean compactToc = false;
 
+    /**
+     * Sets compression type, optionally followed by colon and level, for
+     * example "gzip:9" or "bzip2:1".
+     *
+     * @param compression Compression
+     */
     public void setCompression(String compression) {
         this.compression = compression;
     }
@@ -38,6 +57,55 @@ public class XarTask {
         this.verbose = verbose;
     }
 
+    /**
+     * When destFile exists, compressed data of files whose size and
+     * modification time did not change are copied from it.
+     *
+     * @param incremental True to reuse unchanged files
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * In incremental mode, compare checksums of file contents instead of
+     * modification times.
+     *
+     * @param compareContent True to compare contents
+     */
+    public void setCompareContent(boolean compareContent) {
+        this.compareContent = compareContent;
+    }
+
+    /**
+     * Files whose path in the archive matches the regular expression are
+     * stored without compression.
+     *
+     * @param noCompress Regular expression
+     */
+    public void setNoCompress(String noCompress) {
+        this.noCompress = noCompress;
+    }
+
+    /**
+     * Files whose first 64 kB do not compress below the percentage of their
+     * size are stored without compression.
+     *
+     * @param adaptiveCompression Percentage, 0 to compress all files
+     */
+    public void setAdaptiveCompression(int adaptiveCompression) {
+        this.adaptiveCompression = adaptiveCompression;
+    }
+
+    /**
+     * Writes TOC without indentation.
+     *
+     * @param compactToc True to write compact TOC
+     */
+    public void setCompactToc(boolean compactToc) {
+        this.compactToc = compactToc;
+    }
+
     private String destFile = null;
 
     public void setDestFile(String destFile) {
@@ -61,6 +129,15 @@ public class XarTask {
         if (destFile == null) {
             throw new BuildException("destFile not set");
         }
+        if (compression != null) {
+            try {
+                if (Xar.getEncoding(compression) == null) {
+                    throw new BuildException("Unknown compression " + compression);
+                }
+            } catch (IllegalArgumentException ex) {
+                throw new BuildException(ex.getMessage());
+            }
+        }
     }
 
     private String[] getFileNames(FileSet fs) {
@@ -77,11 +154,122 @@ public class XarTask {
         return files;
     }
 
+    /**
+     * Checks whether file in previous archive has the same content as the
+     * source file and its compressed data are not damaged, so they can be
+     * copied.
+     */
+    private boolean isUnchanged(Xar previous, String path, File f, String compression, Pattern noCompressPattern, String checksum) throws IOException {
+        Node node = previous.getNode(path);
+        if (!(node instanceof FileNode)) {
+            return false;
+        }
+        FileNode fn = (FileNode) node;
+        if (!fn.checksum.getName().equals(checksum)) {
+            return false;
+        }
+        //same rule as the archive uses for added files
+        String encoding = noCompressPattern != null && noCompressPattern.matcher(path).find() ? "none" : Xar.getEncoding(compression).getSimpleName();
+        //compression level is not stored in TOC, data compressed with other level are reused
+        if (!fn.encoding.getSimpleName().equals(encoding)) {
+            //stored uncompressed by adaptiveCompression
+            if (!fn.encoding.getSimpleName().equals("none") || adaptiveCompression == 0) {
+                return false;
+            }
+        }
+        if (fn.size != f.length()) {
+            return false;
+        }
+        if (!compareContent) {
+            //TOC stores times in seconds
+            if (fn.mtime / 1000 != f.lastModified() / 1000) {
+                return false;
+            }
+        } else {
+            MessageDigest digest = fn.checksum.startDigest();
+            if (digest == null) {
+                return false;
+            }
+            byte buf[] = BufferPool.acquire();
+            try (InputStream is = new FileInputStream(f)) {
+                int cnt;
+                while ((cnt = is.read(buf)) > -1) {
+                    digest.update(buf, 0, cnt);
+                }
+            } finally {
+                BufferPool.release(buf);
+            }
+            if (!Xar.byteToHex(fn.checksum.finishDigest(digest)).equals(fn.extractedChecksum)) {
+                return false;
+            }
+        }
+        if (!previous.verifyEntry(path, false)) {
+            System.out.println("Xar: \"" + path + "\" is damaged in previous archive, compressing it again");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Opens previous archive for incremental build.
+     *
+     * @return Archive or null when it cannot be used
+     */
+    private Xar openPrevious(File dest, String compression, String checksum) {
+        if (!incremental || !dest.exists()) {
+            return null;
+        }
+        try {
+            Xar previous = new Xar(dest, null, true);
+            previous.setCheckSumType(checksum);
+            previous.setDefaultEncoding(Xar.getEncoding(compression));
+            return previous;
+        } catch (IOException | RuntimeException ex) {
+            System.out.println("Xar: Cannot read previous archive, rebuilding: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Removes files which are no longer in filesets and directories left
+     * without files.
+     */
+    private void removeStale(Xar archive, Set<String> files) {
+        Set<String> usedDirs = new HashSet<>();
+        for (String path : archive.listFiles()) {
+            if (!files.contains(path)) {
+                if (verbose) {
+                    System.out.println("Xar: Removing \"" + path + "\" ...");
+                }
+                archive.remove(path);
+                continue;
+            }
+            while (path.contains("/")) {
+                path = path.substring(0, path.lastIndexOf("/"));
+                usedDirs.add(path);
+            }
+        }
+        for (String path : archive.listDirs()) {
+            if (!path.isEmpty() && !usedDirs.contains(path)) {
+                archive.remove(path);
+            }
+        }
+    }
+
     public void execute() {
         validate();
         System.out.println("Xar: Creating XAR archive to \"" + destFile + "\" ...");
         Set<String> files = new HashSet<>();
-        Xar archive = new Xar(compression == null ? "gzip" : compression, checksum == null ? "sha1" : checksum);
+        String compression = this.compression == null ? "gzip" : this.compression;
+        String checksum = this.checksum == null ? "sha1" : this.checksum;
+        File dest = new File(destFile);
+        Xar previous = openPrevious(dest, compression, checksum);
+        Xar archive = previous != null ? previous : new Xar(compression, checksum);
+        archive.setNoCompress(noCompress);
+        archive.setAdaptiveCompression(adaptiveCompression / 100.0);
+        archive.setCompactToc(compactToc);
+        Pattern noCompressPattern = noCompress == null ? null : Pattern.compile(noCompress);
+        int reused = 0;
 
         for (TarFileSet fs : filesets) {
 
@@ -117,7 +305,15 @@ public class XarTask {
                 try {
                     String baseName = targetName.contains("/") ? targetName.substring(targetName.lastIndexOf("/") + 1) : targetName;
                     String baseDir = targetName.contains("/") ? targetName.substring(0, targetName.lastIndexOf("/")) : "";
-                    Node n = archive.add(baseDir, baseName, f);
+                    Node n = previous != null ? archive.getNode(targetName) : null;
+                    if (n != null && isUnchanged(previous, targetName, f, compression, noCompressPattern, checksum)) {
+                        reused++;
+                    } else {
+                        if (n != null) {
+                            archive.remove(targetName);
+                        }
+                        n = archive.add(baseDir, baseName, f);
+                    }
                     if (fs.hasGroupBeenSet()) {
                         n.group = fs.getGroup();
                     }
@@ -142,10 +338,36 @@ public class XarTask {
 
         }
 
+        if (previous == null) {
+            try {
+                archive.save(dest);
+            } catch (IOException ex) {
+                throw new BuildException("Xar: Cannot write to \"" + destFile + "\"", ex);
+            }
+            return;
+        }
+
+        removeStale(archive, files);
+        System.out.println("Xar: Reused " + reused + " unchanged files");
+        File tempFile = null;
         try {
-            archive.save(new File(destFile));
+            //data are copied from the previous archive, so it cannot be overwritten while saving
+            tempFile = File.createTempFile("jxar", ".xar", dest.getAbsoluteFile().getParentFile());
+            archive.save(tempFile);
+            archive.close();
+            Files.move(tempFile.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException ex) {
             throw new BuildException("Xar: Cannot write to \"" + destFile + "\"", ex);
+        } finally {
+            try {
+                //release previous archive also when saving failed
+                archive.close();
+            } catch (IOException ex) {
+                //ignore
+            }
+            if (tempFile != null) {
+                tempFile.delete();
+            }
         }
     }
 
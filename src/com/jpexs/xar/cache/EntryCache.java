@@ -0,0 +1,45 @@
+package com.jpexs.xar.cache;
+
+/**
+ * Cache of decompressed file data keyed by path in the archive. One cache
+ * instance should be used with one archive only. Implementations must be
+ * thread safe.
+ *
+ * @author JPEXS
+ */
+public interface EntryCache {
+
+    /**
+     * Gets cached data.
+     *
+     * @param path Path in the archive
+     * @return Data or null when not cached
+     */
+    public byte[] get(String path);
+
+    /**
+     * Stores data in the cache. The cache may decide not to keep them.
+     *
+     * @param path Path in the archive
+     * @param data Uncompressed data
+     */
+    public void put(String path, byte[] data);
+
+    /**
+     * Removes cached data of the path.
+     *
+     * @param path Path in the archive
+     */
+    public void remove(String path);
+
+    /**
+     * Removes all entries.
+     */
+    public void clear();
+
+    public long getHitCount();
+
+    public long getMissCount();
+
+    public long getEvictionCount();
+}
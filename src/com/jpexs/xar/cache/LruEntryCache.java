@@ -0,0 +1,104 @@
+package com.jpexs.xar.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Entry cache limited by total size of cached data. Least recently used
+ * entries are evicted first.
+ *
+ * @author JPEXS
+ */
+public class LruEntryCache implements EntryCache {
+
+    private final long maxBytes;
+    private long currentBytes = 0;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * Creates cache.
+     *
+     * @param maxBytes Maximum total size of cached data in bytes
+     */
+    public LruEntryCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public synchronized byte[] get(String path) {
+        byte[] data = entries.get(path);
+        if (data == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized void put(String path, byte[] data) {
+        if (data.length > maxBytes) {
+            return;
+        }
+        byte[] previous = entries.put(path, data);
+        if (previous != null) {
+            currentBytes -= previous.length;
+        }
+        currentBytes += data.length;
+        Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, byte[]> eldest = it.next();
+            currentBytes -= eldest.getValue().length;
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    @Override
+    public synchronized void remove(String path) {
+        byte[] previous = entries.remove(path);
+        if (previous != null) {
+            currentBytes -= previous.length;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized long getSize() {
+        return currentBytes;
+    }
+
+    public long getMaxSize() {
+        return maxBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    @Override
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    @Override
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+}
@@ -1,5 +1,7 @@
 package com.jpexs.xar.checksum;
 
+import java.security.MessageDigest;
+
 /**
  *
  * @author JPEXS
@@ -13,4 +15,34 @@ public abstract class CheckSum {
     public abstract byte[] checkSum(byte data[]);
 
     public abstract int checkSumLength();
+
+    /**
+     * Creates digest for computing checksum of streamed data.
+     *
+     * @return MessageDigest or null when not supported
+     */
+    public MessageDigest createMessageDigest() {
+        return null;
+    }
+
+    /**
+     * Starts computing checksum of streamed data. Data are passed to update
+     * methods of returned digest and the checksum is obtained by finishDigest.
+     *
+     * @return MessageDigest or null when not supported
+     */
+    public MessageDigest startDigest() {
+        return createMessageDigest();
+    }
+
+    /**
+     * Finishes computing checksum started by startDigest. The digest may be
+     * reused afterwards, so it must not be used by the caller anymore.
+     *
+     * @param digest Digest returned by startDigest
+     * @return Checksum
+     */
+    public byte[] finishDigest(MessageDigest digest) {
+        return digest.digest();
+    }
 }
@@ -2,6 +2,8 @@ package com.jpexs.xar.checksum;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 /**
  *
@@ -9,9 +11,21 @@ import java.security.NoSuchAlgorithmException;
  */
 public abstract class DigestBasedChecksum extends CheckSum {
 
+    /**
+     * Maximum number of finished digests kept for reuse by one thread.
+     */
+    private static final int MAX_CACHED_DIGESTS = 4;
+
     protected String name;
     protected String digestAlgoName;
 
+    private final ThreadLocal<Deque<MessageDigest>> cachedDigests = new ThreadLocal<Deque<MessageDigest>>() {
+        @Override
+        protected Deque<MessageDigest> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
     public DigestBasedChecksum(String name, String digestAlgoName) {
         this.name = name;
         this.digestAlgoName = digestAlgoName;
@@ -23,15 +37,42 @@ public abstract class DigestBasedChecksum extends CheckSum {
     }
 
     @Override
-    public byte[] checkSum(byte[] data) {
+    public MessageDigest createMessageDigest() {
         try {
-            MessageDigest crypt = MessageDigest.getInstance(digestAlgoName);
-            crypt.reset();
-            crypt.update(data);
-            return crypt.digest();
+            return MessageDigest.getInstance(digestAlgoName);
         } catch (NoSuchAlgorithmException e) {
             return null;
         }
     }
 
+    /**
+     * Takes digest finished earlier on this thread, new one is created only
+     * when there is none.
+     */
+    @Override
+    public MessageDigest startDigest() {
+        MessageDigest digest = cachedDigests.get().poll();
+        return digest != null ? digest : createMessageDigest();
+    }
+
+    @Override
+    public byte[] finishDigest(MessageDigest digest) {
+        byte[] result = digest.digest();
+        Deque<MessageDigest> cached = cachedDigests.get();
+        if (cached.size() < MAX_CACHED_DIGESTS) {
+            cached.push(digest);
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] checkSum(byte[] data) {
+        MessageDigest crypt = startDigest();
+        if (crypt == null) {
+            return null;
+        }
+        crypt.update(data);
+        return finishDigest(crypt);
+    }
+
 }
@@ -1,8 +1,11 @@
 package com.jpexs.xar.encoding;
 
+import com.jpexs.xar.io.ParallelBZip2InputStream;
+import com.jpexs.xar.io.ParallelBZip2OutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
 import org.itadaki.bzip2.BZip2InputStream;
 import org.itadaki.bzip2.BZip2OutputStream;
 
@@ -12,6 +15,61 @@ import org.itadaki.bzip2.BZip2OutputStream;
  */
 public class BZip2Encoding extends Encoding {
 
+    public static final int DEFAULT_BLOCK_SIZE_LEVEL = 9;
+
+    private final Executor executor;
+    private final int blockSizeLevel;
+    private final int maxInFlight;
+
+    public BZip2Encoding() {
+        this(DEFAULT_BLOCK_SIZE_LEVEL);
+    }
+
+    /**
+     * Creates encoding with block size.
+     *
+     * @param blockSizeLevel Block size in units of 100 kB, 1 to 9
+     */
+    public BZip2Encoding(int blockSizeLevel) {
+        this(null, blockSizeLevel, 1);
+    }
+
+    /**
+     * Creates encoding which compresses and decompresses blocks of each file
+     * in parallel.
+     *
+     * @param executor Executor to process blocks on or null to process them on
+     * the calling thread
+     * @param maxInFlight Maximum number of blocks of one file being processed
+     * at once
+     */
+    public BZip2Encoding(Executor executor, int maxInFlight) {
+        this(executor, DEFAULT_BLOCK_SIZE_LEVEL, maxInFlight);
+    }
+
+    /**
+     * Creates encoding which compresses and decompresses blocks of each file
+     * in parallel.
+     *
+     * @param executor Executor to process blocks on or null to process them on
+     * the calling thread
+     * @param blockSizeLevel Block size in units of 100 kB, 1 to 9
+     * @param maxInFlight Maximum number of blocks of one file being processed
+     * at once
+     */
+    public BZip2Encoding(Executor executor, int blockSizeLevel, int maxInFlight) {
+        if (blockSizeLevel < 1 || blockSizeLevel > 9) {
+            throw new IllegalArgumentException("Invalid BZip2 block size " + blockSizeLevel);
+        }
+        this.executor = executor;
+        this.blockSizeLevel = blockSizeLevel;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getBlockSizeLevel() {
+        return blockSizeLevel;
+    }
+
     @Override
     public String getName() {
         return "application/x-" + getSimpleName();
@@ -19,13 +77,30 @@ public class BZip2Encoding extends Encoding {
 
     @Override
     public String getSimpleName() {
-        return "bzip";
+        return "bzip2";
+    }
+
+    /**
+     * Parameter is block size in units of 100 kB, 1 to 9.
+     */
+    @Override
+    public Encoding withParameters(String parameters) {
+        int level;
+        try {
+            level = Integer.parseInt(parameters);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid BZip2 block size: " + parameters);
+        }
+        return new BZip2Encoding(executor, level, maxInFlight);
     }
 
     @Override
     public OutputStream encodeOutputStream(OutputStream os) {
+        if (executor != null) {
+            return new ParallelBZip2OutputStream(os, executor, blockSizeLevel, maxInFlight);
+        }
         try {
-            return new BZip2OutputStream(os);
+            return new BZip2OutputStream(os, blockSizeLevel);
         } catch (IOException ex) {
             return null;
         }
@@ -33,7 +108,10 @@ public class BZip2Encoding extends Encoding {
 
     @Override
     public InputStream decodeInputStream(InputStream is) {
-        return new BZip2InputStream(is, true);
+        if (executor != null) {
+            return new ParallelBZip2InputStream(is, executor, maxInFlight);
+        }
+        return new BZip2InputStream(is, false);
     }
 
 }
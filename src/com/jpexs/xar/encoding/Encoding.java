@@ -16,4 +16,16 @@ public abstract class Encoding {
     public abstract OutputStream encodeOutputStream(OutputStream os);
 
     public abstract InputStream decodeInputStream(InputStream is);
+
+    /**
+     * Creates encoding of the same type with compression parameters, like
+     * level. Parameters only affect encoding, data are decoded the same way.
+     *
+     * @param parameters Parameters separated by colon, for example "9"
+     * @return Encoding with the parameters
+     * @throws IllegalArgumentException When parameters are not valid
+     */
+    public Encoding withParameters(String parameters) {
+        throw new IllegalArgumentException("Encoding " + getSimpleName() + " has no parameters");
+    }
 }
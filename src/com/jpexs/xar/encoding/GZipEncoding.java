@@ -1,9 +1,12 @@
 package com.jpexs.xar.encoding;
 
+import com.jpexs.xar.io.ParallelDeflaterOutputStream;
+import com.jpexs.xar.io.PooledDeflaterOutputStream;
+import com.jpexs.xar.io.PooledInflaterInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
 
 /**
  *
@@ -11,6 +14,76 @@ import java.util.zip.InflaterInputStream;
  */
 public class GZipEncoding extends Encoding {
 
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private final Executor executor;
+    private final int level;
+    private final int strategy;
+    private final int blockSize;
+    private final int maxInFlight;
+
+    public GZipEncoding() {
+        this(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+    }
+
+    /**
+     * Creates encoding with compression level and strategy.
+     *
+     * @param level Compression level, 0 to 9 or Deflater.DEFAULT_COMPRESSION
+     * @param strategy Deflater.DEFAULT_STRATEGY, Deflater.FILTERED or
+     * Deflater.HUFFMAN_ONLY
+     */
+    public GZipEncoding(int level, int strategy) {
+        this(null, level, strategy, DEFAULT_BLOCK_SIZE, 1);
+    }
+
+    /**
+     * Creates encoding which deflates blocks of each file in parallel.
+     *
+     * @param executor Executor to deflate blocks on or null to deflate on the
+     * writing thread
+     * @param blockSize Size of uncompressed block
+     * @param maxInFlight Maximum number of blocks of one file being deflated
+     * at once
+     */
+    public GZipEncoding(Executor executor, int blockSize, int maxInFlight) {
+        this(executor, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, blockSize, maxInFlight);
+    }
+
+    /**
+     * Creates encoding which deflates blocks of each file in parallel.
+     *
+     * @param executor Executor to deflate blocks on or null to deflate on the
+     * writing thread
+     * @param level Compression level, 0 to 9 or Deflater.DEFAULT_COMPRESSION
+     * @param strategy Deflater.DEFAULT_STRATEGY, Deflater.FILTERED or
+     * Deflater.HUFFMAN_ONLY
+     * @param blockSize Size of uncompressed block
+     * @param maxInFlight Maximum number of blocks of one file being deflated
+     * at once
+     */
+    public GZipEncoding(Executor executor, int level, int strategy, int blockSize, int maxInFlight) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED && strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("Invalid compression strategy " + strategy);
+        }
+        this.executor = executor;
+        this.level = level;
+        this.strategy = strategy;
+        this.blockSize = blockSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getStrategy() {
+        return strategy;
+    }
+
     @Override
     public String getName() {
         return "application/x-" + getSimpleName();
@@ -21,14 +94,52 @@ public class GZipEncoding extends Encoding {
         return "gzip";
     }
 
+    /**
+     * Parameters are level and optional strategy, for example "1" or
+     * "9:filtered". Strategy is one of default, filtered and huffman.
+     */
+    @Override
+    public Encoding withParameters(String parameters) {
+        String[] parts = parameters.split(":");
+        if (parts.length > 2) {
+            throw new IllegalArgumentException("Invalid gzip parameters: " + parameters);
+        }
+        int newLevel;
+        try {
+            newLevel = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid compression level: " + parts[0]);
+        }
+        int newStrategy = Deflater.DEFAULT_STRATEGY;
+        if (parts.length > 1) {
+            switch (parts[1]) {
+                case "default":
+                    newStrategy = Deflater.DEFAULT_STRATEGY;
+                    break;
+                case "filtered":
+                    newStrategy = Deflater.FILTERED;
+                    break;
+                case "huffman":
+                    newStrategy = Deflater.HUFFMAN_ONLY;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid compression strategy: " + parts[1]);
+            }
+        }
+        return new GZipEncoding(executor, newLevel, newStrategy, blockSize, maxInFlight);
+    }
+
     @Override
     public OutputStream encodeOutputStream(OutputStream os) {
-        return new DeflaterOutputStream(os, false);
+        if (executor != null) {
+            return new ParallelDeflaterOutputStream(os, executor, level, strategy, blockSize, maxInFlight);
+        }
+        return new PooledDeflaterOutputStream(os, level, strategy);
     }
 
     @Override
     public InputStream decodeInputStream(InputStream is) {
-        return new InflaterInputStream(is);
+        return new PooledInflaterInputStream(is);
     }
 
 }
@@ -0,0 +1,72 @@
+package com.jpexs.xar.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads at most given number of bytes from underlying stream. Closing this
+ * stream does not close the underlying stream.
+ *
+ * @author JPEXS
+ */
+public class BoundedInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    public BoundedInputStream(InputStream in, long limit) {
+        super(in);
+        this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int ret = in.read();
+        if (ret > -1) {
+            remaining--;
+        }
+        return ret;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (remaining <= 0) {
+            return -1;
+        }
+        int cnt = in.read(b, off, (int) Math.min(len, remaining));
+        if (cnt > 0) {
+            remaining -= cnt;
+        }
+        return cnt;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long cnt = in.skip(Math.min(n, remaining));
+        if (cnt > 0) {
+            remaining -= cnt;
+        }
+        return cnt;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        //underlying stream is not closed
+    }
+}
@@ -0,0 +1,43 @@
+package com.jpexs.xar.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of I/O buffers shared by all threads, so copying data of an entry does
+ * not allocate a new buffer.
+ *
+ * @author JPEXS
+ */
+public final class BufferPool {
+
+    public static final int BUFFER_SIZE = 65536;
+
+    private static final int MAX_POOLED = 64;
+
+    private static final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private BufferPool() {
+    }
+
+    /**
+     * Takes buffer from the pool or allocates new one.
+     *
+     * @return Buffer of BUFFER_SIZE bytes
+     */
+    public static byte[] acquire() {
+        byte[] buf = buffers.poll();
+        return buf != null ? buf : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Returns buffer to the pool. The buffer must not be used afterwards.
+     *
+     * @param buf Buffer obtained by acquire
+     */
+    public static void release(byte[] buf) {
+        if (buf != null && buf.length == BUFFER_SIZE) {
+            buffers.offer(buf);
+        }
+    }
+}
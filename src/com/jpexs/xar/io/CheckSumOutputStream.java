@@ -0,0 +1,82 @@
+package com.jpexs.xar.io;
+
+import com.jpexs.xar.Xar;
+import com.jpexs.xar.checksum.CheckSum;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Computes checksum and length of data written to underlying stream.
+ *
+ * @author JPEXS
+ */
+public class CheckSumOutputStream extends FilterOutputStream {
+
+    private final CheckSum checksum;
+    private final MessageDigest digest;
+    private ByteArrayOutputStream buffer;
+    private long count = 0;
+    private String checkSumHex;
+
+    public CheckSumOutputStream(OutputStream out, CheckSum checksum) {
+        super(out);
+        this.checksum = checksum;
+        this.digest = checksum.startDigest();
+        if (digest == null && checksum.checkSumLength() > 0) {
+            //checksum does not support streaming
+            buffer = new ByteArrayOutputStream();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        if (digest != null) {
+            digest.update((byte) b);
+        } else if (buffer != null) {
+            buffer.write(b);
+        }
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        if (digest != null) {
+            digest.update(b, off, len);
+        } else if (buffer != null) {
+            buffer.write(b, off, len);
+        }
+        count += len;
+    }
+
+    /**
+     * Gets number of bytes written.
+     *
+     * @return Number of bytes
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets checksum of written data. Nothing can be written afterwards.
+     *
+     * @return Checksum as hex string
+     */
+    public String getCheckSumHex() {
+        if (checkSumHex == null) {
+            if (digest != null) {
+                checkSumHex = Xar.byteToHex(checksum.finishDigest(digest));
+            } else if (buffer != null) {
+                checkSumHex = Xar.byteToHex(checksum.checkSum(buffer.toByteArray()));
+            } else {
+                checkSumHex = Xar.byteToHex(checksum.checkSum(new byte[0]));
+            }
+        }
+        return checkSumHex;
+    }
+}
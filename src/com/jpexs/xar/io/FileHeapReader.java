@@ -0,0 +1,74 @@
+package com.jpexs.xar.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Reads heap using positional reads of a FileChannel. There is no shared file
+ * pointer, so the reader can be used from multiple threads without locking.
+ *
+ * @author JPEXS
+ */
+public class FileHeapReader extends HeapReader {
+
+    private final long heapStart;
+    private final FileChannel channel;
+
+    public FileHeapReader(File file, long heapStart) throws IOException {
+        this.heapStart = heapStart;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    @Override
+    public InputStream openStream(long offset, long length) throws IOException {
+        return new RangeInputStream(channel, heapStart + offset, length);
+    }
+
+    @Override
+    public byte[] read(long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        long position = heapStart + offset;
+        while (buf.hasRemaining()) {
+            int cnt = channel.read(buf, position);
+            if (cnt == -1) {
+                throw new EOFException();
+            }
+            position += cnt;
+        }
+        return buf.array();
+    }
+
+    /**
+     * Writes range of the heap to the channel by FileChannel.transferTo, so
+     * the operating system can copy data without passing them through Java.
+     */
+    @Override
+    public void transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+        long position = heapStart + offset;
+        long end = position + length;
+        while (position < end) {
+            long cnt = channel.transferTo(position, end - position, target);
+            if (cnt <= 0) {
+                throw new EOFException();
+            }
+            position += cnt;
+        }
+    }
+
+    @Override
+    public void digest(long offset, long length, MessageDigest digest) throws IOException {
+        MappedDigest.update(digest, channel, heapStart + offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
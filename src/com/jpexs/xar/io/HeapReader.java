@@ -0,0 +1,80 @@
+package com.jpexs.xar.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Access to heap of an archive. Offsets are relative to the start of the
+ * heap.
+ *
+ * @author JPEXS
+ */
+public abstract class HeapReader implements Closeable {
+
+    /**
+     * Opens stream for reading range of the heap.
+     *
+     * @param offset Offset relative to the heap start
+     * @param length Number of bytes
+     * @return Stream
+     * @throws IOException On read error
+     */
+    public abstract InputStream openStream(long offset, long length) throws IOException;
+
+    /**
+     * Reads range of the heap.
+     *
+     * @param offset Offset relative to the heap start
+     * @param length Number of bytes
+     * @return Data
+     * @throws IOException On read error
+     */
+    public abstract byte[] read(long offset, int length) throws IOException;
+
+    /**
+     * Writes range of the heap to the channel.
+     *
+     * @param offset Offset relative to the heap start
+     * @param length Number of bytes
+     * @param target Target channel
+     * @throws IOException On read or write error
+     */
+    public void transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+        byte[] buf = BufferPool.acquire();
+        try (InputStream is = openStream(offset, length)) {
+            int cnt;
+            while ((cnt = is.read(buf)) > -1) {
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, cnt);
+                while (bb.hasRemaining()) {
+                    target.write(bb);
+                }
+            }
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    /**
+     * Updates the digest with range of the heap.
+     *
+     * @param offset Offset relative to the heap start
+     * @param length Number of bytes
+     * @param digest Digest
+     * @throws IOException On read error
+     */
+    public void digest(long offset, long length, MessageDigest digest) throws IOException {
+        byte[] buf = BufferPool.acquire();
+        try (InputStream is = openStream(offset, length)) {
+            int cnt;
+            while ((cnt = is.read(buf)) > -1) {
+                digest.update(buf, 0, cnt);
+            }
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.jpexs.xar.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Computes digest of a file range without copying it to the Java heap. Large
+ * ranges are mapped into memory in chunks, small ranges are read into a pooled
+ * buffer as mapping them costs more than reading them.
+ *
+ * @author JPEXS
+ */
+public class MappedDigest {
+
+    private static final long CHUNK_SIZE = 64L << 20;
+
+    /**
+     * Ranges smaller than this are read instead of mapped.
+     */
+    public static final long MAP_THRESHOLD = 1 << 20;
+
+    private MappedDigest() {
+    }
+
+    /**
+     * Updates the digest with a range of the file.
+     *
+     * @param digest Digest
+     * @param channel File channel
+     * @param position Position of the range in the file
+     * @param length Length of the range
+     * @throws IOException On read error or when the range is outside the file
+     */
+    public static void update(MessageDigest digest, FileChannel channel, long position, long length) throws IOException {
+        if (position + length > channel.size()) {
+            throw new EOFException("Range " + position + "+" + length + " is outside of the file");
+        }
+        if (length < MAP_THRESHOLD) {
+            byte[] buf = BufferPool.acquire();
+            try {
+                while (length > 0) {
+                    int cnt = channel.read(ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, length)), position);
+                    if (cnt == -1) {
+                        throw new EOFException();
+                    }
+                    digest.update(buf, 0, cnt);
+                    position += cnt;
+                    length -= cnt;
+                }
+            } finally {
+                BufferPool.release(buf);
+            }
+            return;
+        }
+        while (length > 0) {
+            long cnt = Math.min(CHUNK_SIZE, length);
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, cnt));
+            position += cnt;
+            length -= cnt;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.jpexs.xar.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Reads heap from memory mapped file. The heap is mapped in chunks as a single
+ * mapping cannot exceed 2 GB.
+ *
+ * The mapping shows the file as it was when the reader was created only while
+ * the file is not modified. Closing the reader drops the mapping, it is then
+ * released by the garbage collector, and streams opened before fail on the
+ * next read. Archive is closed before it is saved in place, so reads after
+ * save map the rewritten file again.
+ *
+ * @author JPEXS
+ */
+public class MappedHeapReader extends HeapReader {
+
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    private volatile MappedByteBuffer[] chunks;
+    private final long heapLength;
+
+    public MappedHeapReader(File file, long heapStart) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            heapLength = Math.max(0, channel.size() - heapStart);
+            chunks = new MappedByteBuffer[(int) ((heapLength + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < chunks.length; i++) {
+                long chunkStart = i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, heapStart + chunkStart, Math.min(CHUNK_SIZE, heapLength - chunkStart));
+            }
+        }
+    }
+
+    private void checkRange(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > heapLength) {
+            throw new EOFException("Range " + offset + "+" + length + " is outside of the heap");
+        }
+    }
+
+    private MappedByteBuffer[] mapping() throws IOException {
+        MappedByteBuffer[] ret = chunks;
+        if (ret == null) {
+            throw new IOException("Heap reader is closed");
+        }
+        return ret;
+    }
+
+    private void copy(long offset, ByteBuffer target) throws IOException {
+        MappedByteBuffer[] chunks = mapping();
+        while (target.hasRemaining()) {
+            int chunk = (int) (offset / CHUNK_SIZE);
+            int pos = (int) (offset % CHUNK_SIZE);
+            ByteBuffer buf = chunks[chunk].duplicate();
+            buf.position(pos);
+            buf.limit((int) Math.min(buf.capacity(), pos + (long) target.remaining()));
+            offset += buf.remaining();
+            target.put(buf);
+        }
+    }
+
+    @Override
+    public InputStream openStream(long offset, long length) throws IOException {
+        checkRange(offset, length);
+        return new InputStream() {
+            private long position = offset;
+            private final long end = offset + length;
+
+            @Override
+            public int read() throws IOException {
+                if (position >= end) {
+                    return -1;
+                }
+                int ret = mapping()[(int) (position / CHUNK_SIZE)].get((int) (position % CHUNK_SIZE)) & 0xff;
+                position++;
+                return ret;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position >= end) {
+                    return -1;
+                }
+                int cnt = (int) Math.min(len, end - position);
+                copy(position, ByteBuffer.wrap(b, off, cnt));
+                position += cnt;
+                return cnt;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long cnt = Math.min(Math.max(n, 0), end - position);
+                position += cnt;
+                return cnt;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(end - position, Integer.MAX_VALUE);
+            }
+        };
+    }
+
+    @Override
+    public byte[] read(long offset, int length) throws IOException {
+        checkRange(offset, length);
+        byte[] data = new byte[length];
+        copy(offset, ByteBuffer.wrap(data));
+        return data;
+    }
+
+    /**
+     * Calls the consumer with buffers sharing content with the mapping which
+     * together cover the range.
+     */
+    private void forEachSlice(long offset, long length, SliceConsumer consumer) throws IOException {
+        checkRange(offset, length);
+        MappedByteBuffer[] chunks = mapping();
+        long end = offset + length;
+        while (offset < end) {
+            int pos = (int) (offset % CHUNK_SIZE);
+            ByteBuffer buf = chunks[(int) (offset / CHUNK_SIZE)].duplicate();
+            buf.position(pos);
+            buf.limit((int) Math.min(buf.capacity(), pos + (end - offset)));
+            offset += buf.remaining();
+            consumer.accept(buf);
+        }
+    }
+
+    private interface SliceConsumer {
+
+        void accept(ByteBuffer buf) throws IOException;
+    }
+
+    @Override
+    public void transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+        forEachSlice(offset, length, buf -> {
+            while (buf.hasRemaining()) {
+                target.write(buf);
+            }
+        });
+    }
+
+    @Override
+    public void digest(long offset, long length, MessageDigest digest) throws IOException {
+        forEachSlice(offset, length, digest::update);
+    }
+
+    @Override
+    public void close() throws IOException {
+        //there is no way to unmap, mapping is released when the buffers
+        //are garbage collected
+        chunks = null;
+    }
+}
@@ -0,0 +1,344 @@
+package com.jpexs.xar.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import org.itadaki.bzip2.BZip2BlockDecompressor;
+import org.itadaki.bzip2.BitInputStream;
+
+/**
+ * Reads bzip2 stream, decompressing blocks on the executor. Block boundaries
+ * are found by scanning compressed data for block and end of stream markers
+ * at every bit position. A marker may also occur inside compressed data by
+ * chance; such block fails to decompress and is decompressed again together
+ * with the following one.
+ *
+ * @author JPEXS
+ */
+public class ParallelBZip2InputStream extends InputStream {
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = 0xffffffffffffL;
+
+    private final InputStream in;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final Deque<Segment> pending = new ArrayDeque<>();
+
+    private byte[] window = new byte[65536];
+    private int windowLength = 0;
+    private long windowBase = 0;
+    private long segmentStart;
+    private long scanByte;
+    private boolean inputFinished = false;
+    private boolean scanFinished = false;
+
+    private int blockSize = 0;
+    private int streamCRC = 0;
+    private boolean streamFinished = false;
+    private byte[] current;
+    private int currentPos = 0;
+    private boolean closed = false;
+
+    /**
+     * Part of compressed stream between two markers.
+     */
+    private static class Segment {
+
+        long startBit;
+        long endBit;
+        byte[] bytes;
+        boolean endOfStream;
+        FutureTask<Block> task;
+
+        int bitOffset() {
+            return (int) (startBit & 7);
+        }
+    }
+
+    private static class Block {
+
+        byte[] data;
+        int crc;
+    }
+
+    /**
+     * Creates the stream.
+     *
+     * @param in Compressed stream
+     * @param executor Executor to decompress blocks on
+     * @param maxInFlight Maximum number of blocks being decompressed ahead of
+     * the block currently read
+     */
+    public ParallelBZip2InputStream(InputStream in, Executor executor, int maxInFlight) {
+        this.in = in;
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    private void readHeader() throws IOException {
+        while (windowLength < 4 && !inputFinished) {
+            fill();
+        }
+        if (windowLength < 4 || window[0] != 'B' || window[1] != 'Z' || window[2] != 'h' || window[3] < '1' || window[3] > '9') {
+            throw new IOException("Invalid BZip2 header");
+        }
+        blockSize = (window[3] - '0') * 100000;
+        segmentStart = 32;
+        scanByte = 4;
+    }
+
+    private void fill() throws IOException {
+        if (windowLength == window.length) {
+            window = Arrays.copyOf(window, window.length * 2);
+        }
+        int cnt = in.read(window, windowLength, window.length - windowLength);
+        if (cnt == -1) {
+            inputFinished = true;
+        } else {
+            windowLength += cnt;
+        }
+    }
+
+    private long readLong(long absByte) {
+        int pos = (int) (absByte - windowBase);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (pos + i < windowLength ? window[pos + i] & 0xff : 0);
+        }
+        return value;
+    }
+
+    /**
+     * Finds next marker after the start of current segment.
+     *
+     * @return Bit position or -1 when more input is needed
+     */
+    private long findMarker() {
+        long end = windowBase + windowLength - 8;
+        for (; scanByte <= end; scanByte++) {
+            long value = readLong(scanByte);
+            for (int shift = 0; shift < 8; shift++) {
+                long candidate = (value >>> (16 - shift)) & MAGIC_MASK;
+                if (candidate == BLOCK_MAGIC || candidate == EOS_MAGIC) {
+                    long bit = scanByte * 8 + shift;
+                    if (bit > segmentStart) {
+                        return bit;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads input until the next segment is complete.
+     *
+     * @return False when there are no more segments
+     */
+    private boolean scanNext() throws IOException {
+        if (scanFinished) {
+            return false;
+        }
+        while (true) {
+            long bit = findMarker();
+            if (bit == -1 && inputFinished) {
+                bit = (windowBase + windowLength) * 8;
+                scanFinished = true;
+            }
+            if (bit != -1) {
+                addSegment(segmentStart, bit);
+                segmentStart = bit;
+                int drop = (int) ((segmentStart >>> 3) - windowBase);
+                if (drop > 0) {
+                    System.arraycopy(window, drop, window, 0, windowLength - drop);
+                    windowLength -= drop;
+                    windowBase += drop;
+                }
+                return true;
+            }
+            fill();
+        }
+    }
+
+    private void addSegment(long startBit, long endBit) throws IOException {
+        Segment segment = new Segment();
+        segment.startBit = startBit;
+        segment.endBit = endBit;
+        int from = (int) ((startBit >>> 3) - windowBase);
+        int to = (int) Math.min(windowLength, ((endBit + 7) >>> 3) - windowBase);
+        segment.bytes = Arrays.copyOfRange(window, from, to);
+        long marker = (readLong(startBit >>> 3) >>> (16 - segment.bitOffset())) & MAGIC_MASK;
+        if (marker == EOS_MAGIC) {
+            segment.endOfStream = true;
+        } else if (marker == BLOCK_MAGIC) {
+            submit(segment);
+        } else {
+            throw new IOException("BZip2 stream format error");
+        }
+        pending.add(segment);
+    }
+
+    private void submit(Segment segment) {
+        segment.task = decompressTask(segment, blockSize);
+        executor.execute(segment.task);
+    }
+
+    private static FutureTask<Block> decompressTask(Segment segment, int blockSize) {
+        return new FutureTask<>(() -> decompress(segment, blockSize));
+    }
+
+    private static BitInputStream openBits(Segment segment) throws IOException {
+        BitInputStream bis = new BitInputStream(new ByteArrayInputStream(segment.bytes));
+        if (segment.bitOffset() > 0) {
+            bis.readBits(segment.bitOffset());
+        }
+        bis.readBits(24);
+        bis.readBits(24);
+        return bis;
+    }
+
+    private static Block decompress(Segment segment, int blockSize) throws IOException {
+        BZip2BlockDecompressor decompressor = new BZip2BlockDecompressor(openBits(segment), blockSize);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(blockSize);
+        byte[] buf = new byte[65536];
+        int cnt;
+        while ((cnt = decompressor.read(buf, 0, buf.length)) > -1) {
+            baos.write(buf, 0, cnt);
+        }
+        Block block = new Block();
+        block.crc = decompressor.checkCRC();
+        block.data = baos.toByteArray();
+        return block;
+    }
+
+    /**
+     * Joins segment with the following one after false marker.
+     */
+    private static Segment merge(Segment first, Segment second) {
+        Segment segment = new Segment();
+        segment.startBit = first.startBit;
+        segment.endBit = second.endBit;
+        int firstBytes = (int) ((second.startBit >>> 3) - (first.startBit >>> 3));
+        segment.bytes = Arrays.copyOf(first.bytes, firstBytes + second.bytes.length);
+        System.arraycopy(second.bytes, 0, segment.bytes, firstBytes, second.bytes.length);
+        if (second.task != null) {
+            second.task.cancel(false);
+        }
+        return segment;
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (blockSize == 0) {
+            readHeader();
+        }
+        while (true) {
+            if (streamFinished) {
+                return false;
+            }
+            while (pending.size() < maxInFlight && scanNext()) {
+                //read ahead
+            }
+            Segment segment = pending.poll();
+            if (segment == null) {
+                throw new IOException("Unexpected end of BZip2 stream");
+            }
+            if (segment.endOfStream) {
+                BitInputStream bis = openBits(segment);
+                if (bis.readInteger() != streamCRC) {
+                    throw new IOException("BZip2 stream CRC error");
+                }
+                streamFinished = true;
+                return false;
+            }
+            Block block = null;
+            while (block == null) {
+                try {
+                    block = await(segment.task);
+                } catch (IOException | RuntimeException ex) {
+                    if (pending.isEmpty() && !scanNext()) {
+                        throw ex;
+                    }
+                    segment = merge(segment, pending.poll());
+                    segment.task = decompressTask(segment, blockSize);
+                }
+            }
+            streamCRC = ((streamCRC << 1) | (streamCRC >>> 31)) ^ block.crc;
+            current = block.data;
+            currentPos = 0;
+            if (current.length > 0) {
+                return true;
+            }
+        }
+    }
+
+    private static Block await(FutureTask<Block> task) throws IOException {
+        //decompress on this thread when no worker started the block yet
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int cnt = read(b, 0, 1);
+        return cnt == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (current == null || currentPos == current.length) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        int cnt = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, cnt);
+        currentPos += cnt;
+        return cnt;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : pending) {
+            if (segment.task != null) {
+                segment.task.cancel(false);
+            }
+        }
+        pending.clear();
+        in.close();
+    }
+}
@@ -0,0 +1,251 @@
+package com.jpexs.xar.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import org.itadaki.bzip2.BZip2BlockCompressor;
+import org.itadaki.bzip2.BitOutputStream;
+
+/**
+ * Writes bzip2 stream, compressing blocks on the executor. Compressed blocks
+ * are not byte aligned, so they are joined bit by bit into a single stream
+ * with one header and one combined stream CRC.
+ *
+ * @author JPEXS
+ */
+public class ParallelBZip2OutputStream extends OutputStream {
+
+    private static final long EOS_MAGIC = 0x177245385090L;
+
+    private final OutputStream out;
+    private final Executor executor;
+    private final int blockSizeLevel;
+    private final int chunkSize;
+    private final int maxInFlight;
+    private final Deque<FutureTask<Blocks>> inFlight = new ArrayDeque<>();
+    private byte[] buffer;
+    private int count = 0;
+    private int streamCRC = 0;
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+    private boolean headerWritten = false;
+    private boolean closed = false;
+
+    /**
+     * Compressed blocks of one chunk of input.
+     */
+    private static class Blocks {
+
+        byte[] data;
+        long bits;
+        List<Integer> crcs;
+    }
+
+    /**
+     * Counts bits written by block compressor.
+     */
+    private static class CountingBitOutputStream extends BitOutputStream {
+
+        long bits = 0;
+
+        CountingBitOutputStream(OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void writeBoolean(boolean value) throws IOException {
+            super.writeBoolean(value);
+            bits++;
+        }
+
+        @Override
+        public void writeBits(int count, int value) throws IOException {
+            super.writeBits(count, value);
+            bits += count;
+        }
+    }
+
+    /**
+     * Creates the stream.
+     *
+     * @param out Underlying stream
+     * @param executor Executor to compress blocks on
+     * @param blockSizeLevel Block size in units of 100 kB, 1 to 9
+     * @param maxInFlight Maximum number of blocks being compressed ahead of
+     * the block currently written
+     */
+    public ParallelBZip2OutputStream(OutputStream out, Executor executor, int blockSizeLevel, int maxInFlight) {
+        if (blockSizeLevel < 1 || blockSizeLevel > 9) {
+            throw new IllegalArgumentException("Invalid BZip2 block size " + blockSizeLevel);
+        }
+        this.out = out;
+        this.executor = executor;
+        this.blockSizeLevel = blockSizeLevel;
+        //run-length encoding of the block compressor expands input by 5/4 at most
+        this.chunkSize = (blockSizeLevel * 100000 - 6) * 4 / 5 - 4;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            int cnt = Math.min(len, chunkSize - count);
+            System.arraycopy(b, off, buffer, count, cnt);
+            count += cnt;
+            off += cnt;
+            len -= cnt;
+            if (count == chunkSize) {
+                submit();
+            }
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] input = buffer;
+        final int inputLength = count;
+        FutureTask<Blocks> task = new FutureTask<>(() -> compress(input, inputLength));
+        inFlight.add(task);
+        executor.execute(task);
+        buffer = new byte[chunkSize];
+        count = 0;
+        while (inFlight.size() >= maxInFlight) {
+            writeBlocks(inFlight.poll());
+        }
+    }
+
+    private Blocks compress(byte[] input, int length) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 2 + 64);
+        CountingBitOutputStream bos = new CountingBitOutputStream(baos);
+        List<Integer> crcs = new ArrayList<>();
+        int offset = 0;
+        while (offset < length) {
+            BZip2BlockCompressor compressor = new BZip2BlockCompressor(bos, blockSizeLevel * 100000);
+            offset += compressor.write(input, offset, length - offset);
+            compressor.close();
+            crcs.add(compressor.getCRC());
+        }
+        Blocks blocks = new Blocks();
+        blocks.bits = bos.bits;
+        blocks.crcs = crcs;
+        bos.flush();
+        blocks.data = baos.toByteArray();
+        return blocks;
+    }
+
+    private void writeBlocks(FutureTask<Blocks> task) throws IOException {
+        //compress on this thread when no worker started the block yet
+        task.run();
+        Blocks blocks;
+        try {
+            blocks = task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            throw new IOException("Cannot compress block", ex.getCause());
+        }
+        writeHeader();
+        writeBits(blocks.data, blocks.bits);
+        for (int crc : blocks.crcs) {
+            streamCRC = ((streamCRC << 1) | (streamCRC >>> 31)) ^ crc;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        if (headerWritten) {
+            return;
+        }
+        out.write('B');
+        out.write('Z');
+        out.write('h');
+        out.write('0' + blockSizeLevel);
+        headerWritten = true;
+    }
+
+    private void writeBits(int count, long value) throws IOException {
+        bitBuffer = (bitBuffer << count) | (value & ((1L << count) - 1));
+        bitCount += count;
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            out.write((int) (bitBuffer >>> bitCount) & 0xff);
+        }
+        bitBuffer &= (1L << bitCount) - 1;
+    }
+
+    private void writeBits(byte[] data, long bits) throws IOException {
+        int full = (int) (bits >>> 3);
+        if (bitCount == 0) {
+            out.write(data, 0, full);
+        } else {
+            byte[] shifted = new byte[full];
+            int carry = (int) bitBuffer;
+            for (int i = 0; i < full; i++) {
+                int b = data[i] & 0xff;
+                shifted[i] = (byte) ((carry << (8 - bitCount)) | (b >>> bitCount));
+                carry = b & ((1 << bitCount) - 1);
+            }
+            out.write(shifted);
+            bitBuffer = carry;
+        }
+        int rest = (int) (bits & 7);
+        if (rest > 0) {
+            writeBits(rest, (data[full] & 0xff) >>> (8 - rest));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Compresses remaining data, writes end of stream and closes underlying
+     * stream.
+     *
+     * @throws IOException On error
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count > 0) {
+                submit();
+            }
+            while (!inFlight.isEmpty()) {
+                writeBlocks(inFlight.poll());
+            }
+            writeHeader();
+            writeBits(48, EOS_MAGIC);
+            writeBits(32, streamCRC);
+            if (bitCount > 0) {
+                writeBits(8 - bitCount, 0);
+            }
+        } finally {
+            for (FutureTask<Blocks> task : inFlight) {
+                task.cancel(false);
+            }
+            inFlight.clear();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.jpexs.xar.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes zlib stream, deflating blocks of input on the executor. Each block
+ * is deflated with the tail of the previous block as a preset dictionary and
+ * ends with a sync flush, so the blocks join into one deflate stream. Adler-32
+ * of blocks are computed by the workers and combined for the trailer.
+ *
+ * @author JPEXS
+ */
+public class ParallelDeflaterOutputStream extends OutputStream {
+
+    private static final int DICTIONARY_SIZE = 32768;
+
+    private final OutputStream out;
+    private final Executor executor;
+    private final int level;
+    private final int strategy;
+    private final int blockSize;
+    private final int maxInFlight;
+    private final Deque<FutureTask<Block>> inFlight = new ArrayDeque<>();
+    private byte[] buffer;
+    private int count = 0;
+    private byte[] dictionary;
+    private long adler = 1;
+    private boolean headerWritten = false;
+    private boolean closed = false;
+
+    private static class Block {
+
+        byte[] data;
+        int length;
+        int inputLength;
+        long adler;
+    }
+
+    /**
+     * Creates the stream.
+     *
+     * @param out Underlying stream
+     * @param executor Executor to deflate blocks on
+     * @param level Compression level
+     * @param blockSize Size of uncompressed block
+     * @param maxInFlight Maximum number of blocks being deflated ahead of the
+     * block currently written
+     */
+    public ParallelDeflaterOutputStream(OutputStream out, Executor executor, int level, int blockSize, int maxInFlight) {
+        this(out, executor, level, Deflater.DEFAULT_STRATEGY, blockSize, maxInFlight);
+    }
+
+    /**
+     * Creates the stream.
+     *
+     * @param out Underlying stream
+     * @param executor Executor to deflate blocks on
+     * @param level Compression level
+     * @param strategy Compression strategy
+     * @param blockSize Size of uncompressed block
+     * @param maxInFlight Maximum number of blocks being deflated ahead of the
+     * block currently written
+     */
+    public ParallelDeflaterOutputStream(OutputStream out, Executor executor, int level, int strategy, int blockSize, int maxInFlight) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.out = out;
+        this.executor = executor;
+        this.level = level;
+        this.strategy = strategy;
+        this.blockSize = blockSize;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.buffer = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            int cnt = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, buffer, count, cnt);
+            count += cnt;
+            off += cnt;
+            len -= cnt;
+            if (count == blockSize) {
+                submit(false);
+            }
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        final byte[] input = buffer;
+        final int inputLength = count;
+        final byte[] dict = dictionary;
+        FutureTask<Block> task = new FutureTask<>(() -> deflate(input, inputLength, dict, last));
+        inFlight.add(task);
+        executor.execute(task);
+        if (inputLength >= DICTIONARY_SIZE) {
+            dictionary = Arrays.copyOfRange(input, inputLength - DICTIONARY_SIZE, inputLength);
+        } else if (inputLength > 0) {
+            byte[] prev = dictionary == null ? new byte[0] : dictionary;
+            int keep = Math.min(prev.length, DICTIONARY_SIZE - inputLength);
+            dictionary = new byte[keep + inputLength];
+            System.arraycopy(prev, prev.length - keep, dictionary, 0, keep);
+            System.arraycopy(input, 0, dictionary, keep, inputLength);
+        }
+        buffer = new byte[blockSize];
+        count = 0;
+        while (inFlight.size() > (last ? 0 : maxInFlight - 1)) {
+            writeBlock(inFlight.poll());
+        }
+    }
+
+    private Block deflate(byte[] input, int length, byte[] dict, boolean last) {
+        Deflater deflater = ZlibPool.acquireDeflater(level, strategy, true);
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict);
+            }
+            deflater.setInput(input, 0, length);
+            if (last) {
+                deflater.finish();
+            }
+            byte[] output = new byte[length + (length >> 3) + 64];
+            int outputLength = 0;
+            while (true) {
+                if (outputLength == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                int cnt = deflater.deflate(output, outputLength, output.length - outputLength, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                outputLength += cnt;
+                if (last) {
+                    if (deflater.finished()) {
+                        break;
+                    }
+                } else if (cnt == 0 && outputLength < output.length && deflater.needsInput()) {
+                    //a call may only apply pending level or strategy change and
+                    //return early, the flush is complete when no more output
+                    //is produced while there is space for it
+                    break;
+                }
+            }
+            Adler32 checksum = new Adler32();
+            checksum.update(input, 0, length);
+            Block block = new Block();
+            block.data = output;
+            block.length = outputLength;
+            block.inputLength = length;
+            block.adler = checksum.getValue();
+            return block;
+        } finally {
+            ZlibPool.releaseDeflater(deflater, true);
+        }
+    }
+
+    private void writeBlock(FutureTask<Block> task) throws IOException {
+        //deflate on this thread when no worker started the block yet
+        task.run();
+        Block block;
+        try {
+            block = task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            throw new IOException("Cannot deflate block", ex.getCause());
+        }
+        if (!headerWritten) {
+            writeHeader();
+        }
+        out.write(block.data, 0, block.length);
+        adler = combineAdler32(adler, block.adler, block.inputLength);
+    }
+
+    private void writeHeader() throws IOException {
+        int cmf = 0x78;
+        int flevel;
+        if (level >= 0 && level <= 1) {
+            flevel = 0;
+        } else if (level >= 2 && level <= 5) {
+            flevel = 1;
+        } else if (level == 6 || level == Deflater.DEFAULT_COMPRESSION) {
+            flevel = 2;
+        } else {
+            flevel = 3;
+        }
+        int flg = flevel << 6;
+        flg += (31 - ((cmf << 8) + flg) % 31) % 31;
+        out.write(cmf);
+        out.write(flg);
+        headerWritten = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Deflates remaining data, writes the trailer and closes underlying
+     * stream.
+     *
+     * @throws IOException On error
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submit(true);
+            out.write((int) (adler >>> 24) & 0xff);
+            out.write((int) (adler >>> 16) & 0xff);
+            out.write((int) (adler >>> 8) & 0xff);
+            out.write((int) adler & 0xff);
+        } finally {
+            for (FutureTask<Block> task : inFlight) {
+                task.cancel(false);
+            }
+            inFlight.clear();
+            out.close();
+        }
+    }
+
+    /**
+     * Combines Adler-32 checksums of two consecutive parts of data.
+     *
+     * @param adler1 Checksum of the first part
+     * @param adler2 Checksum of the second part
+     * @param length2 Length of the second part
+     * @return Checksum of both parts
+     */
+    public static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= (base << 1)) {
+            sum2 -= (base << 1);
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+}
@@ -0,0 +1,51 @@
+package com.jpexs.xar.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes zlib stream using deflater and buffer from pools. Both are returned
+ * to the pools when the stream is closed.
+ *
+ * @author JPEXS
+ */
+public class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+    private boolean closed = false;
+
+    /**
+     * Creates the stream.
+     *
+     * @param out Underlying stream
+     * @param level Compression level
+     * @param strategy Compression strategy
+     */
+    public PooledDeflaterOutputStream(OutputStream out, int level, int strategy) {
+        super(out, ZlibPool.acquireDeflater(level, strategy, false), 1);
+        buf = BufferPool.acquire();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        super.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            super.close();
+        } finally {
+            closed = true;
+            ZlibPool.releaseDeflater(def, false);
+            BufferPool.release(buf);
+            buf = null;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.jpexs.xar.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads zlib stream using inflater and buffer from pools. Both are returned to
+ * the pools when the stream is closed.
+ *
+ * @author JPEXS
+ */
+public class PooledInflaterInputStream extends InflaterInputStream {
+
+    private boolean closed = false;
+
+    public PooledInflaterInputStream(InputStream in) {
+        super(in, ZlibPool.acquireInflater(), 1);
+        buf = BufferPool.acquire();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        return super.read(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            super.close();
+        } finally {
+            closed = true;
+            ZlibPool.releaseInflater(inf);
+            BufferPool.release(buf);
+            buf = null;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.jpexs.xar.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a range of bytes from a file channel. Positional reads are used, so
+ * any number of streams can share the channel and read concurrently. Closing
+ * the stream does not close the channel.
+ *
+ * @author JPEXS
+ */
+public class RangeInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private long position;
+    private long remaining;
+
+    public RangeInputStream(FileChannel channel, long offset, long length) {
+        this.channel = channel;
+        this.position = offset;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        if (read(b, 0, 1) == -1) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (remaining <= 0) {
+            return -1;
+        }
+        int cnt = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+        if (cnt > 0) {
+            position += cnt;
+            remaining -= cnt;
+        }
+        return cnt;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long cnt = Math.min(Math.max(n, 0), remaining);
+        position += cnt;
+        remaining -= cnt;
+        return cnt;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,126 @@
+package com.jpexs.xar.io;
+
+import com.jpexs.xar.Xar;
+import com.jpexs.xar.checksum.errorhandlers.CheckSumErrorHandler;
+import com.jpexs.xar.encoding.Encoding;
+import com.jpexs.xar.nodes.FileNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * Decodes compressed file data and verifies archived and extracted checksums
+ * when the end of data is reached.
+ *
+ * @author JPEXS
+ */
+public class VerifyingInputStream extends InputStream {
+
+    private final InputStream compressed;
+    private final InputStream in;
+    private final MessageDigest archivedDigest;
+    private final MessageDigest extractedDigest;
+    private final FileNode node;
+    private final String path;
+    private final CheckSumErrorHandler checkSumErrorHandler;
+    private boolean finished = false;
+    private boolean valid = true;
+
+    public VerifyingInputStream(InputStream compressed, FileNode node, String path, CheckSumErrorHandler checkSumErrorHandler) {
+        this(compressed, node.encoding, node, path, checkSumErrorHandler);
+    }
+
+    /**
+     * Creates stream decoding data by other encoding than the encoding of the
+     * node, for example encoding of the same format decompressing in
+     * parallel.
+     *
+     * @param compressed Compressed data
+     * @param encoding Encoding used to decode data
+     * @param node Node with checksums
+     * @param path Path of the file reported to the error handler
+     * @param checkSumErrorHandler Handler of invalid checksums or null
+     */
+    public VerifyingInputStream(InputStream compressed, Encoding encoding, FileNode node, String path, CheckSumErrorHandler checkSumErrorHandler) {
+        this.node = node;
+        this.path = path;
+        this.checkSumErrorHandler = checkSumErrorHandler;
+        archivedDigest = node.checksum.startDigest();
+        extractedDigest = node.checksum.startDigest();
+        if (archivedDigest != null) {
+            compressed = new DigestInputStream(compressed, archivedDigest);
+        }
+        this.compressed = compressed;
+        InputStream decoded = encoding.decodeInputStream(compressed);
+        if (extractedDigest != null) {
+            decoded = new DigestInputStream(decoded, extractedDigest);
+        }
+        this.in = decoded;
+    }
+
+    /**
+     * Checks whether checksums matched. Valid only after the end of data was
+     * reached.
+     *
+     * @return False when checksum did not match
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    private void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        //decoder may stop before the end of the compressed range
+        byte[] buf = BufferPool.acquire();
+        try {
+            while (compressed.read(buf) > -1) {
+            }
+        } finally {
+            BufferPool.release(buf);
+        }
+        if (archivedDigest != null && !Xar.byteToHex(node.checksum.finishDigest(archivedDigest)).equals(node.archivedChecksum)) {
+            valid = false;
+        }
+        if (extractedDigest != null && !Xar.byteToHex(node.checksum.finishDigest(extractedDigest)).equals(node.extractedChecksum)) {
+            valid = false;
+        }
+        if (!valid && checkSumErrorHandler != null) {
+            checkSumErrorHandler.handleCheckSumError(path);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int ret = in.read();
+        if (ret == -1) {
+            finish();
+        }
+        return ret;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int cnt = in.read(b, off, len);
+        if (cnt == -1) {
+            finish();
+        }
+        return cnt;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+        compressed.close();
+    }
+}
@@ -0,0 +1,80 @@
+package com.jpexs.xar.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of deflaters and inflaters shared by all threads. Native zlib context
+ * is reset between entries instead of being allocated for each of them and
+ * released only by finalization. Instances which do not fit into the pool are
+ * ended immediately.
+ *
+ * @author JPEXS
+ */
+public final class ZlibPool {
+
+    private static final int MAX_POOLED = 32;
+
+    private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(MAX_POOLED);
+    private static final BlockingQueue<Deflater> rawDeflaters = new ArrayBlockingQueue<>(MAX_POOLED);
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private ZlibPool() {
+    }
+
+    /**
+     * Takes deflater from the pool or creates new one.
+     *
+     * @param level Compression level
+     * @param strategy Compression strategy
+     * @param nowrap True for raw deflate without zlib header and trailer
+     * @return Deflater
+     */
+    public static Deflater acquireDeflater(int level, int strategy, boolean nowrap) {
+        Deflater deflater = (nowrap ? rawDeflaters : deflaters).poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, nowrap);
+        } else {
+            deflater.setLevel(level);
+        }
+        deflater.setStrategy(strategy);
+        return deflater;
+    }
+
+    /**
+     * Returns deflater to the pool. The deflater must not be used afterwards.
+     *
+     * @param deflater Deflater obtained by acquireDeflater
+     * @param nowrap Value passed to acquireDeflater
+     */
+    public static void releaseDeflater(Deflater deflater, boolean nowrap) {
+        deflater.reset();
+        if (!(nowrap ? rawDeflaters : deflaters).offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Takes inflater of zlib stream from the pool or creates new one.
+     *
+     * @return Inflater
+     */
+    public static Inflater acquireInflater() {
+        Inflater inflater = inflaters.poll();
+        return inflater != null ? inflater : new Inflater();
+    }
+
+    /**
+     * Returns inflater to the pool. The inflater must not be used afterwards.
+     *
+     * @param inflater Inflater obtained by acquireInflater
+     */
+    public static void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.jpexs.xar.nodes;
 
+import com.jpexs.xar.TocWriter;
+import java.io.IOException;
+
 /**
  *
  * @author JPEXS
@@ -14,15 +17,25 @@ public class DirectoryNode extends Node {
         super(-1, name, "directory", ctime, mtime, atime, mode, group, gid, user, uid);
     }
 
+    /**
+     * Creates copy of the directory. Subnodes are shared with the original
+     * directory, only the map of them is copied.
+     *
+     * @param other Directory to copy
+     */
+    public DirectoryNode(DirectoryNode other) {
+        super(other.id, other.name, other.type, other.ctime, other.mtime, other.atime, other.mode, other.group, other.gid, other.userName, other.uid);
+        subnodes.putAll(other.subnodes);
+    }
+
     @Override
-    public String toString() {
-        String ret = "<file id=\"" + id + "\">"
-                + basicInfo();
-        for (String k : subnodes.keySet()) {
-            ret += subnodes.get(k);
+    public void writeToc(TocWriter w) throws IOException {
+        w.startElement("file", "id", Integer.toString(id));
+        writeBasicInfo(w);
+        for (Node subnode : subnodes.values()) {
+            subnode.writeToc(w);
         }
-        ret += "</file>";
-        return ret;
+        w.endElement();
     }
 
 }
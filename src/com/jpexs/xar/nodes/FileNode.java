@@ -1,13 +1,17 @@
 package com.jpexs.xar.nodes;
 
+import com.jpexs.xar.TocWriter;
 import com.jpexs.xar.Xar;
 import com.jpexs.xar.checksum.CheckSum;
 import com.jpexs.xar.encoding.Encoding;
+import com.jpexs.xar.encoding.NoEncoding;
+import com.jpexs.xar.io.BufferPool;
+import com.jpexs.xar.io.CheckSumOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 
 /**
  *
@@ -17,39 +21,45 @@ public class FileNode extends Node {
 
     public byte[] data;
     public byte[] compressedData;
-    public int length;
-    public int size;
+    public long length;
+    public long size;
     public String encodingStyle;
     public long offset;
     public String archivedChecksum = "";
     public String extractedChecksum = "";
     public String cksum_alg;
+    public Encoding encoding;
+    public CheckSum checksum;
+    public File sourceFile;
 
     @Override
-    public String toString() {
-
-        return "<file id=\"" + id + "\">"
-                + "<data>"
-                + "<length>" + length + "</length>"
-                + "<encoding style=\"" + encodingStyle + "\" />"
-                + "<offset>" + offset + "</offset>"
-                + "<size>" + size + "</size>"
-                + "<archived-checksum style=\"" + cksum_alg + "\">" + archivedChecksum + "</archived-checksum>"
-                + "<extracted-checksum style=\"" + cksum_alg + "\">" + extractedChecksum + "</extracted-checksum>"
-                + "</data>"
-                + basicInfo()
-                + "</file>";
+    public void writeToc(TocWriter w) throws IOException {
+        w.startElement("file", "id", Integer.toString(id));
+        w.startElement("data");
+        w.element("length", length);
+        w.emptyElement("encoding", "style", encodingStyle);
+        w.element("offset", offset);
+        w.element("size", size);
+        w.element("archived-checksum", "style", cksum_alg, archivedChecksum);
+        w.element("extracted-checksum", "style", cksum_alg, extractedChecksum);
+        w.endElement();
+        writeBasicInfo(w);
+        w.endElement();
     }
 
     public FileNode(String name, InputStream is, Encoding encoding, CheckSum checksum, long ctime, long mtime, long atime, int mode, String group, int gid, String user, int uid) throws IOException {
         super(-1, name, "file", ctime, mtime, atime, mode, group, gid, user, uid);
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buf = new byte[1024];
-        int cnt;
-        while ((cnt = is.read(buf)) > 0) {
-            baos.write(buf, 0, cnt);
+        byte[] buf = BufferPool.acquire();
+        try {
+            int cnt;
+            while ((cnt = is.read(buf)) > 0) {
+                baos.write(buf, 0, cnt);
+            }
+        } finally {
+            BufferPool.release(buf);
+            is.close();
         }
-        is.close();
         init(baos.toByteArray(), null, encoding, checksum, 0);
     }
 
@@ -57,44 +67,95 @@ public class FileNode extends Node {
         this(name, data, compressedData, encoding, checksum, offset, -1, -1, -1, -1, null, -1, null, -1);
     }
 
+    /**
+     * Encodes or decodes data and computes both checksums while the data are
+     * streamed, so each byte is processed only once. Data with NoEncoding are
+     * not copied and their checksum is computed once.
+     */
     private void init(byte[] data, byte compressedData[], Encoding encoding, CheckSum checksum, long offset) {
-        if (data == null) {
+        if (encoding instanceof NoEncoding && (data == null || compressedData == null)) {
+            //stored data are the same in both forms
+            if (data == null) {
+                data = compressedData;
+            } else {
+                compressedData = data;
+            }
+            archivedChecksum = Xar.byteToHex(checksum.checkSum(data));
+            extractedChecksum = archivedChecksum;
+        } else if (data == null) {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            InputStream is = new ByteArrayInputStream(compressedData);
-            try {
-                is = encoding.decodeInputStream(is);
+            CheckSumOutputStream extracted = new CheckSumOutputStream(baos, checksum);
+            byte buf[] = BufferPool.acquire();
+            try (InputStream is = encoding.decodeInputStream(new ByteArrayInputStream(compressedData))) {
                 int cnt;
-                byte buf[] = new byte[1024];
                 while ((cnt = is.read(buf)) > 0) {
-                    baos.write(buf, 0, cnt);
+                    extracted.write(buf, 0, cnt);
                 }
             } catch (IOException ex) {
                 //ignore
+            } finally {
+                BufferPool.release(buf);
             }
             data = baos.toByteArray();
-        }
-        this.data = data;
-        if (compressedData == null) {
+            archivedChecksum = Xar.byteToHex(checksum.checkSum(compressedData));
+            extractedChecksum = extracted.getCheckSumHex();
+        } else if (compressedData == null) {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            OutputStream os = baos;
+            CheckSumOutputStream archived = new CheckSumOutputStream(baos, checksum);
+            CheckSumOutputStream extracted = new CheckSumOutputStream(encoding.encodeOutputStream(archived), checksum);
             try {
-                os = encoding.encodeOutputStream(os);
-                os.write(data);
-                os.close();
+                extracted.write(data);
+                extracted.close();
             } catch (IOException ex) {
                 //ignore
             }
             compressedData = baos.toByteArray();
+            archivedChecksum = archived.getCheckSumHex();
+            extractedChecksum = extracted.getCheckSumHex();
+        } else {
+            archivedChecksum = Xar.byteToHex(checksum.checkSum(compressedData));
+            extractedChecksum = Xar.byteToHex(checksum.checkSum(data));
         }
+        this.data = data;
         this.encodingStyle = encoding.getName();
+        this.encoding = encoding;
         this.compressedData = compressedData;
 
         this.cksum_alg = checksum.getName();
+        this.checksum = checksum;
         this.offset = offset;
         length = compressedData.length;
         size = data.length;
-        archivedChecksum = Xar.byteToHex(checksum.checkSum(compressedData));
-        extractedChecksum = Xar.byteToHex(checksum.checkSum(data));
+    }
+
+    /**
+     * Creates node with data in a local file. Only the path is recorded, data
+     * are encoded when the archive is saved.
+     */
+    public FileNode(String name, File sourceFile, Encoding encoding, CheckSum checksum, long ctime, long mtime, long atime, int mode, String group, int gid, String user, int uid) {
+        super(-1, name, "file", ctime, mtime, atime, mode, group, gid, user, uid);
+        this.sourceFile = sourceFile;
+        this.encoding = encoding;
+        this.encodingStyle = encoding.getName();
+        this.checksum = checksum;
+        this.cksum_alg = checksum.getName();
+        this.size = sourceFile.length();
+    }
+
+    /**
+     * Creates node from TOC metadata only. Data are not loaded.
+     */
+    public FileNode(String name, Encoding encoding, CheckSum checksum, long offset, long length, long size, String archivedChecksum, String extractedChecksum, long ctime, long mtime, long atime, int mode, String group, int gid, String user, int uid) {
+        super(-1, name, "file", ctime, mtime, atime, mode, group, gid, user, uid);
+        this.encoding = encoding;
+        this.encodingStyle = encoding.getName();
+        this.checksum = checksum;
+        this.cksum_alg = checksum.getName();
+        this.offset = offset;
+        this.length = length;
+        this.size = size;
+        this.archivedChecksum = archivedChecksum;
+        this.extractedChecksum = extractedChecksum;
     }
 
     public FileNode(String name, byte[] data, byte compressedData[], Encoding encoding, CheckSum checksum, long offset, long ctime, long mtime, long atime, int mode, String group, int gid, String user, int uid) {
@@ -1,15 +1,14 @@
 package com.jpexs.xar.nodes;
 
-import com.jpexs.xar.Xar;
+import com.jpexs.xar.TocWriter;
 import com.jpexs.xar.checksum.CheckSum;
 import com.jpexs.xar.encoding.Encoding;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Date;
-import java.util.Formatter;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -19,7 +18,6 @@ import java.util.TreeMap;
  */
 public abstract class Node {
 
-    Formatter FMT = new Formatter();
     public int id;
     public String name;
     public Map<String, Node> subnodes = new TreeMap<>();
@@ -61,31 +59,89 @@ public abstract class Node {
         this.type = type;
     }
 
-    protected String basicInfo() {
-        return ((ctime > -1) ? "<ctime>" + Xar.DATE_FORMAT.format(new Date(ctime)) + "</ctime>" : "")
-                + ((mtime > -1) ? "<mtime>" + Xar.DATE_FORMAT.format(new Date(mtime)) + "</mtime>" : "")
-                + ((atime > -1) ? "<atime>" + Xar.DATE_FORMAT.format(new Date(atime)) + "</atime>" : "")
-                + ((group != null) ? "<group>" + group + "</group>" : "")
-                + ((gid > -1) ? "<gid>" + gid + "</gid>" : "")
-                + ((userName != null) ? "<user>" + userName + "</user>" : "")
-                + ((uid > -1) ? "<uid>" + uid + "</uid>" : "")
-                + ((mode > -1) ? "<mode>" + FMT.format("%04o", mode) + "</mode>" : "")
-                + "<type>" + type + "</type>"
-                + "<name>" + name + "</name>";
+    /**
+     * Writes elements common to all node types.
+     *
+     * @param w TOC writer
+     * @throws IOException On error
+     */
+    protected void writeBasicInfo(TocWriter w) throws IOException {
+        if (ctime > -1) {
+            w.dateElement("ctime", ctime);
+        }
+        if (mtime > -1) {
+            w.dateElement("mtime", mtime);
+        }
+        if (atime > -1) {
+            w.dateElement("atime", atime);
+        }
+        if (group != null) {
+            w.element("group", group);
+        }
+        if (gid > -1) {
+            w.element("gid", gid);
+        }
+        if (userName != null) {
+            w.element("user", userName);
+        }
+        if (uid > -1) {
+            w.element("uid", uid);
+        }
+        if (mode > -1) {
+            String octal = Integer.toOctalString(mode);
+            w.element("mode", octal.length() >= 4 ? octal : "0000".substring(octal.length()) + octal);
+        }
+        w.element("type", type);
+        w.element("name", name);
+    }
+
+    /**
+     * Writes file element of the node to TOC.
+     *
+     * @param w TOC writer
+     * @throws IOException On error
+     */
+    public abstract void writeToc(TocWriter w) throws IOException;
+
+    @Override
+    public String toString() {
+        StringWriter sw = new StringWriter();
+        try {
+            writeToc(new TocWriter(sw, false));
+        } catch (IOException ex) {
+            //StringWriter does not throw
+        }
+        return sw.toString();
     }
 
     public static Node getInstance(String name, File file, CheckSum checksum, Encoding encoding) throws IOException {
         BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return getInstance(name, file.toPath(), attrs, checksum, encoding);
+    }
+
+    /**
+     * Creates node from already read file attributes.
+     *
+     * @param name Name of the node
+     * @param path Local file
+     * @param attrs Attributes of the file
+     * @param checksum Checksum of file data
+     * @param encoding Encoding of file data
+     * @return Node
+     * @throws IOException On error
+     */
+    public static Node getInstance(String name, Path path, BasicFileAttributes attrs, CheckSum checksum, Encoding encoding) throws IOException {
         long ctime = attrs.creationTime().toMillis();
         long mtime = attrs.lastModifiedTime().toMillis();
         long atime = attrs.lastAccessTime().toMillis();
+        File file = path.toFile();
         if (attrs.isSymbolicLink()) {
-            String linkTarget = Files.readSymbolicLink(file.toPath()).toFile().getAbsolutePath();
+            String linkTarget = Files.readSymbolicLink(path).toFile().getAbsolutePath();
             return new SymLinkNode(name, file.isDirectory() ? "directory" : "file", linkTarget, ctime, mtime, atime, -1, null, -1, null, -1);
-        } else if (file.isDirectory()) {
+        } else if (attrs.isDirectory()) {
             return new DirectoryNode(name, ctime, mtime, atime, -1, null, -1, null, -1);
         } else {
-            return new FileNode(name, new FileInputStream(file), encoding, checksum, ctime, mtime, atime, -1, null, -1, null, -1);
+            return new FileNode(name, file, encoding, checksum, ctime, mtime, atime, -1, null, -1, null, -1);
         }
     }
 }
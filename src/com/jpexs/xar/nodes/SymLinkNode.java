@@ -1,5 +1,8 @@
 package com.jpexs.xar.nodes;
 
+import com.jpexs.xar.TocWriter;
+import java.io.IOException;
+
 /**
  *
  * @author JPEXS
@@ -20,12 +23,11 @@ public class SymLinkNode extends Node {
     }
 
     @Override
-    public String toString() {
-        String ret = "<file id=\"" + id + "\">"
-                + "<link type=\"" + targetType + "\">" + link + "</link>"
-                + basicInfo();
-        ret += "</file>";
-        return ret;
+    public void writeToc(TocWriter w) throws IOException {
+        w.startElement("file", "id", Integer.toString(id));
+        w.element("link", "type", targetType, link);
+        writeBasicInfo(w);
+        w.endElement();
     }
 
 }
@@ -1,7 +1,45 @@
 package com.jpexs.xar;
 
+import com.jpexs.xar.cache.LruEntryCache;
+import com.jpexs.xar.checksum.CheckSum;
+import com.jpexs.xar.checksum.Sha1CheckSum;
+import com.jpexs.xar.checksum.errorhandlers.ExceptionCheckSumErrorHandler;
+import com.jpexs.xar.encoding.BZip2Encoding;
+import com.jpexs.xar.encoding.GZipEncoding;
+import com.jpexs.xar.encoding.NoEncoding;
+import com.jpexs.xar.io.ParallelDeflaterOutputStream;
+import com.jpexs.xar.nodes.DirectoryNode;
+import com.jpexs.xar.nodes.FileNode;
+import com.jpexs.xar.nodes.Node;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -29,4 +67,1057 @@ public class XarTest {
         }
     }
 
+    @Test
+    public void testLazyOpen() throws IOException {
+        Xar x = new Xar();
+        x.add("src/test/one", "first.xml", new File("build.xml"));
+        x.add("other", "second.properties", new File("build.properties"));
+        File f = new File("test2.xar");
+        try {
+            x.save(f);
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertEquals(x.getToc(), x2.getToc());
+                Assert.assertEquals(x2.getFileData("src/test/one/first.xml"), Files.readAllBytes(new File("build.xml").toPath()));
+                Assert.assertEquals(x2.getFileData("other/second.properties"), Files.readAllBytes(new File("build.properties").toPath()));
+            }
+        } finally {
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int cnt;
+        while ((cnt = is.read(buf)) > -1) {
+            baos.write(buf, 0, cnt);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testOpenEntry() throws IOException {
+        Xar x = new Xar();
+        x.add("src/test/one", "first.xml", new File("build.xml"));
+        File f = new File("test3.xar");
+        try {
+            x.save(f);
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertEquals(readAll(x2.openEntry("src/test/one/first.xml")), Files.readAllBytes(new File("build.xml").toPath()));
+                Assert.assertNull(x2.openEntry("src/test/one"));
+                Assert.assertNull(x2.openEntry("nonexistent"));
+            }
+        } finally {
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    private static void deleteRecursive(File f) {
+        File[] subs = f.listFiles();
+        if (subs != null) {
+            for (File sub : subs) {
+                deleteRecursive(sub);
+            }
+        }
+        f.delete();
+    }
+
+    @Test
+    public void testParallelExtract() throws IOException {
+        Xar x = new Xar();
+        x.add("src/test/one", "first.xml", new File("build.xml"));
+        x.add("other", "second.properties", new File("build.properties"));
+        x.addDirectory("third");
+        File f = new File("test4.xar");
+        File outdir = new File("test4out");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            x.save(f);
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                x2.extract(outdir, executor);
+            }
+            Assert.assertEquals(Files.readAllBytes(new File(outdir, "src/test/one/first.xml").toPath()), Files.readAllBytes(new File("build.xml").toPath()));
+            Assert.assertEquals(Files.readAllBytes(new File(outdir, "other/second.properties").toPath()), Files.readAllBytes(new File("build.properties").toPath()));
+            Assert.assertTrue(new File(outdir, "third").isDirectory());
+        } finally {
+            executor.shutdown();
+            deleteRecursive(outdir);
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testExtractCorruptData() throws IOException {
+        Xar x = new Xar();
+        x.add("", "first.xml", new File("build.xml"));
+        File f = new File("test26.xar");
+        File outdir = new File("test26out");
+        try {
+            x.save(f);
+            long offset;
+            try (Xar x2 = new Xar(f, null, true)) {
+                offset = ((FileNode) x2.getNode("first.xml")).offset;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.seek(8);
+                offset += Xar.HEADER_SIZE + raf.readLong();
+                //invalid type of the first deflate block
+                raf.seek(offset + 2);
+                raf.write(0xff);
+            }
+            try (Xar x2 = new Xar(f, null, true)) {
+                x2.extract(outdir);
+                Assert.fail();
+            } catch (IOException ex) {
+                //expected
+            }
+            Assert.assertTrue(outdir.isDirectory());
+            Assert.assertFalse(new File(outdir, "first.xml").exists());
+            try (XarStreamReader reader = new XarStreamReader(new PipeInputStream(new FileInputStream(f)), null)) {
+                reader.extract(outdir);
+                Assert.fail();
+            } catch (IOException ex) {
+                //expected
+            }
+            Assert.assertFalse(new File(outdir, "first.xml").exists());
+        } finally {
+            deleteRecursive(outdir);
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testMemoryMapped() throws IOException {
+        Xar x = new Xar();
+        x.add("src/test/one", "first.xml", new File("build.xml"));
+        x.add("other", "second.properties", new File("build.properties"));
+        File f = new File("test5.xar");
+        try {
+            x.save(f);
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true, true)) {
+                Assert.assertEquals(x.getToc(), x2.getToc());
+                Assert.assertEquals(x2.getFileData("src/test/one/first.xml"), Files.readAllBytes(new File("build.xml").toPath()));
+                Assert.assertEquals(readAll(x2.openEntry("other/second.properties")), Files.readAllBytes(new File("build.properties").toPath()));
+                InputStream is = x2.openEntry("other/second.properties");
+                x2.close();
+                try {
+                    is.read();
+                    Assert.fail("Stream of closed archive was read");
+                } catch (IOException ex) {
+                    //expected, mapping was dropped
+                }
+                Assert.assertEquals(x2.getFileData("src/test/one/first.xml"), Files.readAllBytes(new File("build.xml").toPath()));
+            }
+            Xar x3 = new Xar(f, new ExceptionCheckSumErrorHandler(), false, true);
+            Assert.assertEquals(x3.getFileData("src/test/one/first.xml"), Files.readAllBytes(new File("build.xml").toPath()));
+        } finally {
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        Xar x = new Xar();
+        x.add("src/test/one", "first.xml", new File("build.xml"));
+        x.add("other", "second.properties", new File("build.properties"));
+        File f = new File("test6.xar");
+        byte[] first = Files.readAllBytes(new File("build.xml").toPath());
+        byte[] second = Files.readAllBytes(new File("build.properties").toPath());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            x.save(f);
+            for (boolean memoryMapped : new boolean[]{false, true}) {
+                try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true, memoryMapped)) {
+                    List<Future<Boolean>> results = new ArrayList<>();
+                    for (int i = 0; i < 64; i++) {
+                        boolean even = i % 2 == 0;
+                        results.add(executor.submit(() -> {
+                            if (even) {
+                                return Arrays.equals(readAll(x2.openEntry("src/test/one/first.xml")), first);
+                            }
+                            return Arrays.equals(x2.getFileData("other/second.properties"), second);
+                        }));
+                    }
+                    for (Future<Boolean> result : results) {
+                        Assert.assertTrue(result.get());
+                    }
+                }
+            }
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                Node root = x2.getNode("");
+                Node other = x2.getNode("other");
+                Node one = x2.getNode("src/test/one");
+                x2.add("other", "third.xml", new File("build.xml"));
+                x2.remove("src/test/one/first.xml");
+                //nodes read before modification are not changed
+                Assert.assertEquals(other.subnodes.keySet(), Collections.singleton("second.properties"));
+                Assert.assertEquals(one.subnodes.keySet(), Collections.singleton("first.xml"));
+                Assert.assertEquals(x2.getNode("other").subnodes.size(), 2);
+                Assert.assertTrue(x2.getNode("src/test/one").subnodes.isEmpty());
+                Assert.assertSame(x2.getNode("").subnodes.get("other"), x2.getNode("other"));
+                Assert.assertNotSame(x2.getNode("").subnodes.get("other"), root.subnodes.get("other"));
+            }
+        } finally {
+            executor.shutdown();
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testEntryCache() throws IOException {
+        Xar x = new Xar();
+        x.add("src/test/one", "first.xml", new File("build.xml"));
+        x.add("other", "second.properties", new File("build.properties"));
+        File f = new File("test7.xar");
+        byte[] first = Files.readAllBytes(new File("build.xml").toPath());
+        byte[] second = Files.readAllBytes(new File("build.properties").toPath());
+        try {
+            x.save(f);
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                LruEntryCache cache = new LruEntryCache(Math.max(first.length, second.length));
+                x2.setEntryCache(cache);
+                Assert.assertEquals(x2.getFileData("src/test/one/first.xml"), first);
+                Assert.assertEquals(x2.getFileData("src/test/one/first.xml"), first);
+                Assert.assertEquals(cache.getMissCount(), 1);
+                Assert.assertEquals(cache.getHitCount(), 1);
+                Assert.assertEquals(x2.getFileData("other/second.properties"), second);
+                Assert.assertEquals(cache.getEvictionCount(), 1);
+                Assert.assertEquals(cache.getEntryCount(), 1);
+                Assert.assertEquals(cache.getSize(), second.length);
+            }
+        } finally {
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testEntryCacheRemoveAdd() throws IOException {
+        Xar x = new Xar();
+        x.add("src/test/one", "first.xml", new File("build.xml"));
+        x.add("other", "second.properties", new File("build.properties"));
+        File f = new File("test28.xar");
+        byte[] first = Files.readAllBytes(new File("build.xml").toPath());
+        byte[] second = Files.readAllBytes(new File("build.properties").toPath());
+        try {
+            x.save(f);
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                x2.setEntryCache(new LruEntryCache(1024 * 1024));
+                Assert.assertEquals(x2.getFileData("other/second.properties"), second);
+                Assert.assertEquals(x2.getFileData("src/test/one/first.xml"), first);
+                x2.remove("other/second.properties");
+                x2.add("other", "second.properties", new File("build.xml"));
+                Assert.assertEquals(x2.getFileData("other/second.properties"), first);
+                Assert.assertEquals(readAll(x2.openEntry("other/second.properties")), first);
+                //removing directory evicts files under it
+                x2.remove("src");
+                x2.add("src/test/one", "first.xml", new File("build.properties"));
+                Assert.assertEquals(x2.getFileData("src/test/one/first.xml"), second);
+                x2.saveInPlace();
+                Assert.assertEquals(x2.getFileData("other/second.properties"), first);
+                Assert.assertEquals(x2.getFileData("src/test/one/first.xml"), second);
+            }
+        } finally {
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testVerify() throws IOException {
+        Xar x = new Xar();
+        x.add("src/test/one", "first.xml", new File("build.xml"));
+        x.add("other", "second.properties", new File("build.properties"));
+        File f = new File("test8.xar");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            x.save(f);
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                VerifyReport report = x2.verify(executor);
+                Assert.assertTrue(report.isValid());
+                Assert.assertEquals(report.getFileCount(), 2);
+                Assert.assertEquals(report.getExtractedBytes(), new File("build.xml").length() + new File("build.properties").length());
+                Assert.assertTrue(x2.verify(executor, false).isValid());
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.seek(raf.length() - 1);
+                int last = raf.read();
+                raf.seek(raf.length() - 1);
+                raf.write(last ^ 0xff);
+            }
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                for (boolean full : new boolean[]{false, true}) {
+                    VerifyReport report = x2.verify(executor, full);
+                    Assert.assertFalse(report.isValid());
+                    Assert.assertEquals(report.getFailures().size(), 1);
+                }
+            }
+        } finally {
+            executor.shutdown();
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testStreamingSave() throws IOException {
+        Xar x = new Xar();
+        x.add("src/test/one", "first.xml", new File("build.xml"));
+        x.add("other", "second.properties", new File("build.properties"));
+        byte[] expected = Files.readAllBytes(new File("build.xml").toPath());
+        File f = new File("test9.xar");
+        File f2 = new File("test10.xar");
+        try {
+            Assert.assertEquals(x.getFileData("src/test/one/first.xml"), expected);
+            x.save(f);
+            Assert.assertEquals(readAll(x.openEntry("src/test/one/first.xml")), expected);
+            x.close();
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertEquals(x2.getFileData("src/test/one/first.xml"), expected);
+                x2.add("third", "first.xml", new File("build.xml"));
+                x2.save(f2);
+            }
+            try (Xar x3 = new Xar(f2, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertEquals(x3.getFileData("src/test/one/first.xml"), expected);
+                Assert.assertEquals(x3.getFileData("third/first.xml"), expected);
+                Assert.assertEquals(x3.getFileData("other/second.properties"), Files.readAllBytes(new File("build.properties").toPath()));
+            }
+        } finally {
+            if (f.exists()) {
+                f.delete();
+            }
+            if (f2.exists()) {
+                f2.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testParallelSave() throws IOException {
+        Xar x = new Xar("gzip", "md5");
+        x.add("other", "second.properties", new File("build.properties"));
+        for (int i = 0; i < 10; i++) {
+            x.add("src/test/" + i, "first.xml", new File("build.xml"));
+        }
+        byte[] expected = Files.readAllBytes(new File("build.xml").toPath());
+        File f = new File("test11.xar");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            x.save(f, executor, 3);
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertEquals(x.getToc(), x2.getToc());
+                Assert.assertTrue(x2.verify(executor).isValid());
+                for (int i = 0; i < 10; i++) {
+                    Assert.assertEquals(x2.getFileData("src/test/" + i + "/first.xml"), expected);
+                }
+            }
+        } finally {
+            executor.shutdown();
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testParallelDeflate() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            GZipEncoding encoding = new GZipEncoding(executor, 64 * 1024, 3);
+            Random random = new Random(1);
+            byte[] data = new byte[1024 * 1024 + 123];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) ('a' + random.nextInt(4));
+            }
+            for (byte[] input : new byte[][]{data, new byte[0]}) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (OutputStream os = encoding.encodeOutputStream(baos)) {
+                    os.write(input);
+                }
+                Assert.assertEquals(readAll(new InflaterInputStream(new ByteArrayInputStream(baos.toByteArray()))), input);
+            }
+            for (int strategy : new int[]{Deflater.FILTERED, Deflater.HUFFMAN_ONLY}) {
+                GZipEncoding strategyEncoding = new GZipEncoding(executor, 9, strategy, 64 * 1024, 3);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (OutputStream os = strategyEncoding.encodeOutputStream(baos)) {
+                    os.write(data);
+                }
+                Assert.assertEquals(readAll(new InflaterInputStream(new ByteArrayInputStream(baos.toByteArray()))), data, "strategy " + strategy);
+            }
+
+            File f = new File("test12.xar");
+            try {
+                for (GZipEncoding saveEncoding : new GZipEncoding[]{encoding, new GZipEncoding(executor, 9, Deflater.FILTERED, 4096, 3)}) {
+                    Xar x = new Xar();
+                    x.setDefaultEncoding(saveEncoding);
+                    x.add("src/test/one", "first.xml", new File("build.xml"));
+                    x.save(f);
+                    try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                        Assert.assertTrue(x2.verify(executor).isValid());
+                        Assert.assertEquals(x2.getFileData("src/test/one/first.xml"), Files.readAllBytes(new File("build.xml").toPath()));
+                    }
+                }
+            } finally {
+                if (f.exists()) {
+                    f.delete();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelBZip2() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            BZip2Encoding encoding = new BZip2Encoding(executor, 3);
+            Random random = new Random(2);
+            byte[] data = new byte[3 * 1024 * 1024 + 17];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) ('a' + random.nextInt(16));
+            }
+            for (byte[] input : new byte[][]{data, new byte[0]}) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (OutputStream os = encoding.encodeOutputStream(baos)) {
+                    os.write(input);
+                }
+                byte[] compressed = baos.toByteArray();
+                Assert.assertEquals(readAll(new BZip2Encoding().decodeInputStream(new ByteArrayInputStream(compressed))), input);
+                Assert.assertEquals(readAll(encoding.decodeInputStream(new ByteArrayInputStream(compressed))), input);
+            }
+
+            for (BZip2Encoding e : new BZip2Encoding[]{new BZip2Encoding(), encoding}) {
+                Xar x = new Xar("bzip2", "sha1");
+                x.setDefaultEncoding(e);
+                x.add("src/test/one", "first.xml", new File("build.xml"));
+                File f = new File("test13.xar");
+                try {
+                    x.save(f);
+                    try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                        Assert.assertTrue(x2.verify(executor).isValid());
+                        Assert.assertEquals(x2.getFileData("src/test/one/first.xml"), Files.readAllBytes(new File("build.xml").toPath()));
+                    }
+                    AtomicInteger decodedBlocks = new AtomicInteger();
+                    try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                        x2.setDecodingEncoding(new BZip2Encoding(r -> {
+                            decodedBlocks.incrementAndGet();
+                            executor.execute(r);
+                        }, 3));
+                        Assert.assertEquals(readAll(x2.openEntry("src/test/one/first.xml")), Files.readAllBytes(new File("build.xml").toPath()));
+                    }
+                    Assert.assertTrue(decodedBlocks.get() > 0);
+                } finally {
+                    if (f.exists()) {
+                        f.delete();
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCoalesceHeap() throws IOException {
+        File f = new File("test14.xar");
+        File f2 = new File("test15.xar");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            long[] lengths = new long[2];
+            for (boolean coalesce : new boolean[]{false, true}) {
+                Xar x = new Xar();
+                x.setCoalesceHeap(coalesce);
+                for (int i = 0; i < 5; i++) {
+                    x.add("src/test/" + i, "first.xml", new File("build.xml"));
+                }
+                x.add("other", "second.properties", new File("build.properties"));
+                x.save(f, executor, 2);
+                lengths[coalesce ? 1 : 0] = f.length();
+            }
+            long xmlLength;
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertTrue(x2.verify(executor).isValid());
+                for (int i = 0; i < 5; i++) {
+                    Assert.assertEquals(x2.getFileData("src/test/" + i + "/first.xml"), Files.readAllBytes(new File("build.xml").toPath()));
+                }
+                x2.setCoalesceHeap(true);
+                x2.add("third", "first.xml", new File("build.xml"));
+                x2.save(f2);
+                xmlLength = lengths[0] - lengths[1];
+            }
+            Assert.assertTrue(xmlLength > 0);
+            Assert.assertTrue(f2.length() - f.length() < xmlLength / 4);
+            try (Xar x3 = new Xar(f2, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertTrue(x3.verify(executor).isValid());
+                Assert.assertEquals(x3.getFileData("third/first.xml"), Files.readAllBytes(new File("build.xml").toPath()));
+            }
+        } finally {
+            executor.shutdown();
+            if (f.exists()) {
+                f.delete();
+            }
+            if (f2.exists()) {
+                f2.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testSaveInPlace() throws Exception {
+        byte[] xml = Files.readAllBytes(new File("build.xml").toPath());
+        File f = new File("test16.xar");
+        try {
+            Xar x = new Xar();
+            x.add("src/test/one", "first.xml", new File("build.xml"));
+            x.save(f);
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                x2.add("other", "second.properties", new File("build.properties"));
+                x2.saveInPlace();
+                Assert.assertEquals(x2.getFileData("other/second.properties"), Files.readAllBytes(new File("build.properties").toPath()));
+            }
+            byte[] before = Files.readAllBytes(f.toPath());
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertTrue(x2.verify(Runnable::run).isValid());
+                x2.add("third", "first.xml", new File("build.xml"));
+                x2.remove("src/test");
+                x2.saveInPlace();
+            }
+            byte[] after = Files.readAllBytes(f.toPath());
+            Assert.assertTrue(after.length > before.length && after.length < before.length + xml.length);
+            Assert.assertEquals(Arrays.copyOfRange(after, before.length - 100, before.length), Arrays.copyOfRange(before, before.length - 100, before.length));
+            try (Xar x3 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertTrue(x3.verify(Runnable::run).isValid());
+                Assert.assertEquals(x3.getFileData("third/first.xml"), xml);
+                Assert.assertNull(x3.getFileData("src/test/one/first.xml"));
+                Assert.assertEquals(x3.listFiles().length, 2);
+            }
+            try (Xar x4 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                x4.setCheckSumType("md5");
+                x4.add("fourth", "first.xml", new File("build.xml"));
+                x4.saveInPlace();
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                raf.seek(8);
+                long tocLength = raf.readLong();
+                raf.seek(24);
+                Assert.assertEquals(raf.readInt(), Xar.CKSUM_ALG_NUM_MD5);
+                byte[] toc = new byte[(int) tocLength];
+                raf.seek(Xar.HEADER_SIZE);
+                raf.readFully(toc);
+                byte[] tocChecksum = new byte[16];
+                raf.readFully(tocChecksum);
+                Assert.assertEquals(tocChecksum, MessageDigest.getInstance("MD5").digest(toc));
+            }
+            try (Xar x5 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertEquals(x5.getCheckSumType(), "md5");
+                Assert.assertTrue(x5.verify(Runnable::run).isValid());
+                Assert.assertEquals(x5.getFileData("third/first.xml"), xml);
+                Assert.assertEquals(x5.getFileData("fourth/first.xml"), xml);
+            }
+        } finally {
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testNoCompress() throws IOException {
+        File f = new File("test18.xar");
+        File random = File.createTempFile("jxar", ".bin");
+        try {
+            byte[] randomData = new byte[100000];
+            new Random(42).nextBytes(randomData);
+            Files.write(random.toPath(), randomData);
+            Xar x = new Xar();
+            x.setNoCompress("\\.properties$");
+            x.setAdaptiveCompression(0.9);
+            x.add("src", "first.xml", new File("build.xml"));
+            x.add("src", "second.properties", new File("build.properties"));
+            x.add("bin", "random.bin", random);
+            x.save(f);
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertEquals(((FileNode) x2.getNode("src/first.xml")).encoding.getSimpleName(), "gzip");
+                Assert.assertEquals(((FileNode) x2.getNode("src/second.properties")).encoding.getSimpleName(), "none");
+                FileNode randomNode = (FileNode) x2.getNode("bin/random.bin");
+                Assert.assertEquals(randomNode.encoding.getSimpleName(), "none");
+                Assert.assertEquals(randomNode.length, randomData.length);
+                Assert.assertEquals(x2.getFileData("bin/random.bin"), randomData);
+                Assert.assertTrue(x2.verify(Runnable::run).isValid());
+            }
+        } finally {
+            random.delete();
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testCompressionLevel() throws IOException {
+        byte[] xml = Files.readAllBytes(new File("build.xml").toPath());
+        File f = new File("test19.xar");
+        try {
+            long[] lengths = new long[2];
+            String[] specs = new String[]{"gzip:0", "gzip:9:filtered", "bzip2:1"};
+            for (int i = 0; i < specs.length; i++) {
+                Xar x = new Xar(specs[i]);
+                x.add("src", "first.xml", new File("build.xml"));
+                x.save(f);
+                if (i < lengths.length) {
+                    lengths[i] = f.length();
+                }
+                try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                    Assert.assertEquals(x2.getFileData("src/first.xml"), xml);
+                }
+            }
+            Assert.assertTrue(lengths[0] > xml.length);
+            Assert.assertTrue(lengths[1] < xml.length / 2);
+            for (String spec : new String[]{"gzip:10", "gzip:1:fast", "bzip2:0", "none:1"}) {
+                try {
+                    new Xar(spec);
+                    Assert.fail(spec);
+                } catch (IllegalArgumentException ex) {
+                    //expected
+                }
+            }
+        } finally {
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testPooledStreams() throws IOException {
+        byte[] xml = Files.readAllBytes(new File("build.xml").toPath());
+        for (String spec : new String[]{"gzip:0", "gzip:9", "gzip:1:huffman", "gzip"}) {
+            GZipEncoding encoding = (GZipEncoding) Xar.getEncoding(spec);
+            for (int i = 0; i < 3; i++) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                OutputStream os = encoding.encodeOutputStream(baos);
+                os.write(xml);
+                os.close();
+                os.close();
+                try {
+                    os.write(xml);
+                    Assert.fail();
+                } catch (IOException ex) {
+                    //expected
+                }
+                if (encoding.getLevel() == 0) {
+                    Assert.assertTrue(baos.size() > xml.length);
+                } else {
+                    Assert.assertTrue(baos.size() < xml.length * 3 / 4);
+                }
+                InputStream is = encoding.decodeInputStream(new ByteArrayInputStream(baos.toByteArray()));
+                ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                byte[] buf = new byte[1000];
+                int cnt;
+                while ((cnt = is.read(buf)) > -1) {
+                    decoded.write(buf, 0, cnt);
+                }
+                is.close();
+                is.close();
+                Assert.assertEquals(decoded.toByteArray(), xml);
+            }
+        }
+    }
+
+    @Test
+    public void testPooledDeflaterLevels() throws IOException {
+        Random random = new Random(18);
+        byte[] data = new byte[300000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        //deflaters are reused from the pool with a different level each time
+        for (int level : new int[]{-1, 1, 9, 1, 6, -1, 3}) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (OutputStream os = new ParallelDeflaterOutputStream(baos, Runnable::run, level, 64 * 1024, 2)) {
+                os.write(data);
+            }
+            Assert.assertEquals(readAll(new InflaterInputStream(new ByteArrayInputStream(baos.toByteArray()))), data, "level " + level);
+        }
+    }
+
+    @Test
+    public void testStreamingChecksum() throws Exception {
+        byte[] xml = Files.readAllBytes(new File("build.xml").toPath());
+        CheckSum sha1 = new Sha1CheckSum();
+        String expected = Xar.byteToHex(MessageDigest.getInstance("SHA-1").digest(xml));
+        for (int i = 0; i < 3; i++) {
+            MessageDigest first = sha1.startDigest();
+            MessageDigest second = sha1.startDigest();
+            Assert.assertNotSame(first, second);
+            first.update(xml, 0, 100);
+            second.update(xml);
+            first.update(xml, 100, xml.length - 100);
+            Assert.assertEquals(Xar.byteToHex(sha1.finishDigest(first)), expected);
+            Assert.assertEquals(Xar.byteToHex(sha1.finishDigest(second)), expected);
+            Assert.assertEquals(Xar.byteToHex(sha1.checkSum(xml)), expected);
+        }
+        FileNode encoded = new FileNode("build.xml", xml, null, new GZipEncoding(), sha1, 0);
+        Assert.assertEquals(encoded.extractedChecksum, expected);
+        Assert.assertEquals(encoded.archivedChecksum, Xar.byteToHex(sha1.checkSum(encoded.compressedData)));
+        FileNode decoded = new FileNode("build.xml", null, encoded.compressedData, new GZipEncoding(), sha1, 0);
+        Assert.assertEquals(decoded.data, xml);
+        Assert.assertEquals(decoded.extractedChecksum, expected);
+        Assert.assertEquals(decoded.archivedChecksum, encoded.archivedChecksum);
+    }
+
+    @Test
+    public void testCompactToc() throws IOException {
+        byte[] xml = Files.readAllBytes(new File("build.xml").toPath());
+        File f = new File("test20.xar");
+        try {
+            Xar x = new Xar();
+            x.setCompactToc(true);
+            x.add("src/a&b", "<first>.xml", new File("build.xml"));
+            x.add("src", "second \"quoted\".properties", new File("build.properties"));
+            x.save(f);
+            String toc = x.getToc();
+            Assert.assertFalse(toc.contains("\n"));
+            Assert.assertTrue(toc.contains("<name>a&amp;b</name>"));
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertEquals(x2.getFileData("src/a&b/<first>.xml"), xml);
+                Assert.assertNotNull(x2.getFileData("src/second \"quoted\".properties"));
+                Assert.assertTrue(x2.getToc().contains("\n"));
+                x2.setCompactToc(true);
+                Assert.assertEquals(x2.getToc(), toc);
+            }
+        } finally {
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testAddTree() throws IOException {
+        File f = new File("test21.xar");
+        Path root = Files.createTempDirectory("jxar");
+        try {
+            Files.createDirectories(root.resolve("sub/deep"));
+            Files.createDirectories(root.resolve("skip"));
+            Files.write(root.resolve("a.txt"), "a".getBytes("UTF-8"));
+            Files.write(root.resolve("sub/deep/b.txt"), "b".getBytes("UTF-8"));
+            Files.write(root.resolve("sub/c.log"), "c".getBytes("UTF-8"));
+            Files.write(root.resolve("skip/d.txt"), "d".getBytes("UTF-8"));
+            Pattern exclude = Pattern.compile("(/skip$|\\.log$)");
+            Xar x = new Xar();
+            Node node = x.addTree("base", root, p -> !exclude.matcher(p).find());
+            Assert.assertTrue(node instanceof DirectoryNode);
+            x.save(f);
+            String name = root.getFileName().toString();
+            try (Xar x2 = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                List<String> files = Arrays.asList(x2.listFiles());
+                Assert.assertEquals(files.size(), 2);
+                Assert.assertEquals(x2.getFileData("base/" + name + "/a.txt"), "a".getBytes("UTF-8"));
+                Assert.assertEquals(x2.getFileData("base/" + name + "/sub/deep/b.txt"), "b".getBytes("UTF-8"));
+                Assert.assertNull(x2.getNode("base/" + name + "/skip"));
+            }
+        } finally {
+            Files.walk(root).sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testLargeEntryToc() throws IOException {
+        File f = new File("test22.xar");
+        String toc = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><xar><toc>"
+                + "<creation-time>2020-01-01T00:00:00Z</creation-time>"
+                + "<file id=\"1\"><data><length>3000000000</length><encoding style=\"application/octet-stream\"/>"
+                + "<offset>4000000000</offset><size>5000000000</size>"
+                + "<archived-checksum style=\"none\"></archived-checksum><extracted-checksum style=\"none\"></extracted-checksum></data>"
+                + "<type>file</type><name>big.img</name></file></toc></xar>";
+        byte[] tocBytes = toc.getBytes("UTF-8");
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream os = new DeflaterOutputStream(compressed)) {
+            os.write(tocBytes);
+        }
+        try {
+            try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(f))) {
+                dos.write(Xar.MAGIC);
+                dos.writeShort(Xar.HEADER_SIZE);
+                dos.writeShort(Xar.VERSION);
+                dos.writeLong(compressed.size());
+                dos.writeLong(tocBytes.length);
+                dos.writeInt(Xar.CKSUM_ALG_NUM_NONE);
+                dos.write(compressed.toByteArray());
+            }
+            for (boolean lazy : new boolean[]{true, false}) {
+                try (Xar x = new Xar(f, null, lazy)) {
+                    FileNode fn = (FileNode) x.getNode("big.img");
+                    Assert.assertEquals(fn.length, 3000000000L);
+                    Assert.assertEquals(fn.size, 5000000000L);
+                    Assert.assertEquals(fn.offset, 4000000000L);
+                    Assert.assertNull(x.getFileData("big.img"));
+                    Assert.assertTrue(x.getToc().contains("<size>5000000000</size>"));
+                }
+            }
+        } finally {
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testHeapOrderReads() throws IOException {
+        File f = new File("test23.xar");
+        File f2 = new File("test23b.xar");
+        File outdir = new File("test23out");
+        String[] names = new String[]{"d.bin", "c.txt", "b.bin", "a.txt"};
+        byte[][] contents = new byte[names.length][];
+        Random random = new Random(23);
+        StringBuilder toc = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><xar><toc>"
+                + "<creation-time>2020-01-01T00:00:00Z</creation-time>");
+        ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        for (int i = 0; i < names.length; i++) {
+            //heap order is reverse of path order, b.bin is too large to be coalesced
+            contents[i] = new byte[names[i].equals("b.bin") ? Xar.COALESCE_MAX_ENTRY + 1 : 1000 + i];
+            random.nextBytes(contents[i]);
+            toc.append("<file id=\"").append(i + 1).append("\"><data><length>").append(contents[i].length)
+                    .append("</length><encoding style=\"application/octet-stream\"/><offset>").append(heap.size())
+                    .append("</offset><size>").append(contents[i].length).append("</size>")
+                    .append("<archived-checksum style=\"none\"></archived-checksum><extracted-checksum style=\"none\"></extracted-checksum></data>")
+                    .append("<type>file</type><name>").append(names[i]).append("</name></file>");
+            heap.write(contents[i]);
+            //gap between entries
+            heap.write(new byte[10]);
+        }
+        toc.append("</toc></xar>");
+        byte[] tocBytes = toc.toString().getBytes("UTF-8");
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream os = new DeflaterOutputStream(compressed)) {
+            os.write(tocBytes);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(f))) {
+                dos.write(Xar.MAGIC);
+                dos.writeShort(Xar.HEADER_SIZE);
+                dos.writeShort(Xar.VERSION);
+                dos.writeLong(compressed.size());
+                dos.writeLong(tocBytes.length);
+                dos.writeInt(Xar.CKSUM_ALG_NUM_NONE);
+                dos.write(compressed.toByteArray());
+                dos.write(heap.toByteArray());
+            }
+            try (Xar x = new Xar(f, new ExceptionCheckSumErrorHandler(), true)) {
+                x.extract(outdir, executor);
+                for (int i = 0; i < names.length; i++) {
+                    Assert.assertEquals(Files.readAllBytes(new File(outdir, names[i]).toPath()), contents[i]);
+                }
+                VerifyReport report = x.verify(executor, true);
+                Assert.assertTrue(report.isValid());
+                Assert.assertEquals(report.getFileCount(), names.length);
+                x.save(f2);
+            }
+            try (Xar x = new Xar(f2, new ExceptionCheckSumErrorHandler(), true)) {
+                long previous = -1;
+                for (int i = 0; i < names.length; i++) {
+                    FileNode fn = (FileNode) x.getNode(names[i]);
+                    Assert.assertTrue(fn.offset > previous);
+                    previous = fn.offset;
+                    Assert.assertEquals(x.getFileData(names[i]), contents[i]);
+                }
+            }
+        } finally {
+            executor.shutdown();
+            f.delete();
+            f2.delete();
+            deleteRecursive(outdir);
+        }
+    }
+
+    @Test
+    public void testStoredZeroCopy() throws IOException {
+        File f = new File("test24.xar");
+        File f2 = new File("test24b.xar");
+        File outdir = new File("test24out");
+        File big = File.createTempFile("jxar", ".bin");
+        File small = File.createTempFile("jxar", ".bin");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            byte[] bigData = new byte[3 * 1024 * 1024 + 7];
+            byte[] smallData = new byte[1000];
+            Random random = new Random(24);
+            random.nextBytes(bigData);
+            random.nextBytes(smallData);
+            Files.write(big.toPath(), bigData);
+            Files.write(small.toPath(), smallData);
+            for (File target : new File[]{f, f2}) {
+                Xar x = new Xar();
+                x.setNoCompress("\\.bin$");
+                x.add("", "big.bin", big);
+                x.add("", "first.xml", new File("build.xml"));
+                x.add("", "small.bin", small);
+                if (target == f) {
+                    x.save(target);
+                } else {
+                    x.save(target, executor, 2);
+                }
+            }
+            for (File target : new File[]{f, f2}) {
+                for (boolean memoryMapped : new boolean[]{false, true}) {
+                    try (Xar x = new Xar(target, new ExceptionCheckSumErrorHandler(), true, memoryMapped)) {
+                        FileNode bigNode = (FileNode) x.getNode("big.bin");
+                        Assert.assertEquals(bigNode.encoding.getSimpleName(), "none");
+                        Assert.assertEquals(bigNode.length, bigData.length);
+                        Assert.assertEquals(bigNode.archivedChecksum, bigNode.extractedChecksum);
+                        Assert.assertTrue(x.verify(Runnable::run).isValid());
+                        x.extract(outdir, executor);
+                        Assert.assertEquals(Files.readAllBytes(new File(outdir, "big.bin").toPath()), bigData);
+                        Assert.assertEquals(Files.readAllBytes(new File(outdir, "small.bin").toPath()), smallData);
+                        Assert.assertEquals(Files.readAllBytes(new File(outdir, "first.xml").toPath()), Files.readAllBytes(new File("build.xml").toPath()));
+                    }
+                    deleteRecursive(outdir);
+                }
+            }
+            long bigOffset;
+            try (Xar x = new Xar(f, null, true)) {
+                bigOffset = ((FileNode) x.getNode("big.bin")).offset;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.seek(8);
+                bigOffset += Xar.HEADER_SIZE + raf.readLong();
+                raf.seek(bigOffset + 12345);
+                int b = raf.read();
+                raf.seek(bigOffset + 12345);
+                raf.write(b ^ 0xff);
+            }
+            List<String> errors = new ArrayList<>();
+            try (Xar x = new Xar(f, errors::add, true)) {
+                x.extract(outdir);
+            }
+            Assert.assertEquals(errors, Arrays.asList("big.bin"));
+            Assert.assertFalse(new File(outdir, "big.bin").exists());
+            Assert.assertEquals(Files.readAllBytes(new File(outdir, "small.bin").toPath()), smallData);
+
+            FileNode stored = new FileNode("stored.bin", smallData, null, new NoEncoding(), new Sha1CheckSum(), 0);
+            Assert.assertSame(stored.compressedData, stored.data);
+            Assert.assertEquals(stored.archivedChecksum, Xar.byteToHex(new Sha1CheckSum().checkSum(smallData)));
+            Assert.assertEquals(stored.extractedChecksum, stored.archivedChecksum);
+        } finally {
+            executor.shutdown();
+            big.delete();
+            small.delete();
+            f.delete();
+            f2.delete();
+            deleteRecursive(outdir);
+        }
+    }
+
+    /**
+     * Stream which cannot skip, like a pipe.
+     */
+    private static class PipeInputStream extends FilterInputStream {
+
+        PipeInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public long skip(long n) {
+            return 0;
+        }
+    }
+
+    @Test
+    public void testStreamReader() throws IOException {
+        File f = new File("test25.xar");
+        File outdir = new File("test25out");
+        File random = File.createTempFile("jxar", ".bin");
+        try {
+            byte[] xml = Files.readAllBytes(new File("build.xml").toPath());
+            byte[] randomData = new byte[300000];
+            new Random(25).nextBytes(randomData);
+            Files.write(random.toPath(), randomData);
+            Xar x = new Xar();
+            x.setCoalesceHeap(true);
+            x.setNoCompress("\\.bin$");
+            x.add("b", "first.xml", new File("build.xml"));
+            x.add("a", "copy.xml", new File("build.xml"));
+            x.add("", "random.bin", random);
+            x.add("c", "second.properties", new File("build.properties"));
+            x.save(f);
+
+            try (XarStreamReader reader = new XarStreamReader(new PipeInputStream(new FileInputStream(f)), new ExceptionCheckSumErrorHandler())) {
+                Assert.assertEquals(reader.getArchive().listFiles().length, 4);
+                List<String> paths = new ArrayList<>();
+                long previous = -1;
+                XarStreamReader.Entry entry;
+                while ((entry = reader.next()) != null) {
+                    paths.add(entry.getPath());
+                    Assert.assertTrue(entry.getNode().offset >= previous);
+                    previous = entry.getNode().offset;
+                    if (entry.getPath().equals("b/first.xml")) {
+                        //data of a/copy.xml are shared and were passed already
+                        Assert.assertTrue(entry.isPassed());
+                        try {
+                            entry.openStream();
+                            Assert.fail();
+                        } catch (IOException ex) {
+                            //expected
+                        }
+                    } else if (entry.getPath().equals("random.bin")) {
+                        //only part is read, the rest is skipped
+                        byte[] start = new byte[100];
+                        try (DataInputStream dis = new DataInputStream(entry.openStream())) {
+                            dis.readFully(start);
+                        }
+                        Assert.assertEquals(start, Arrays.copyOf(randomData, 100));
+                    } else {
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        try (InputStream is = entry.openStream()) {
+                            byte[] buf = new byte[4096];
+                            int cnt;
+                            while ((cnt = is.read(buf)) > -1) {
+                                baos.write(buf, 0, cnt);
+                            }
+                        }
+                        Assert.assertTrue(entry.isValid());
+                        if (entry.getPath().equals("a/copy.xml")) {
+                            Assert.assertEquals(baos.toByteArray(), xml);
+                        }
+                    }
+                }
+                Assert.assertEquals(paths.size(), 4);
+            }
+
+            try (XarStreamReader reader = new XarStreamReader(new PipeInputStream(new FileInputStream(f)), new ExceptionCheckSumErrorHandler())) {
+                reader.extract(outdir);
+            }
+            Assert.assertEquals(Files.readAllBytes(new File(outdir, "a/copy.xml").toPath()), xml);
+            Assert.assertEquals(Files.readAllBytes(new File(outdir, "b/first.xml").toPath()), xml);
+            Assert.assertEquals(Files.readAllBytes(new File(outdir, "random.bin").toPath()), randomData);
+            Assert.assertEquals(Files.readAllBytes(new File(outdir, "c/second.properties").toPath()), Files.readAllBytes(new File("build.properties").toPath()));
+        } finally {
+            random.delete();
+            f.delete();
+            deleteRecursive(outdir);
+        }
+    }
 }
@@ -0,0 +1,153 @@
+package com.jpexs.xar.ant;
+
+import com.jpexs.xar.Xar;
+import com.jpexs.xar.checksum.errorhandlers.ExceptionCheckSumErrorHandler;
+import com.jpexs.xar.nodes.FileNode;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.TarFileSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author JPEXS
+ */
+public class XarTaskTest {
+
+    private static void runTask(File dir, File dest) {
+        runTask(dir, dest, null);
+    }
+
+    private static void runTask(File dir, File dest, String noCompress) {
+        Project project = new Project();
+        TarFileSet fs = new TarFileSet();
+        fs.setProject(project);
+        fs.setDir(dir);
+        fs.setPrefix("data/");
+        XarTask task = new XarTask();
+        task.setProject(project);
+        task.setDestFile(dest.getPath());
+        task.setIncremental(true);
+        task.setNoCompress(noCompress);
+        task.addTarFileset(fs);
+        task.execute();
+    }
+
+    @Test
+    public void testIncremental() throws IOException {
+        File dir = Files.createTempDirectory("jxar").toFile();
+        File dest = new File("test17.xar");
+        try {
+            File a = new File(dir, "a.txt");
+            File b = new File(dir, "sub/b.txt");
+            b.getParentFile().mkdirs();
+            Files.write(a.toPath(), "first".getBytes("UTF-8"));
+            Files.write(b.toPath(), "second".getBytes("UTF-8"));
+            File d = new File(dir, "d.txt");
+            Files.write(d.toPath(), "keep".getBytes("UTF-8"));
+            runTask(dir, dest);
+
+            //same size and modification time, so the old data are reused
+            long mtime = d.lastModified();
+            Files.write(d.toPath(), "KEEP".getBytes("UTF-8"));
+            d.setLastModified(mtime);
+
+            Files.write(a.toPath(), "first changed".getBytes("UTF-8"));
+            b.delete();
+            b.getParentFile().delete();
+            Files.write(new File(dir, "c.txt").toPath(), "third".getBytes("UTF-8"));
+            runTask(dir, dest);
+
+            try (Xar x = new Xar(dest, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertTrue(x.verify(Runnable::run).isValid());
+                Assert.assertEquals(new String(x.getFileData("data/a.txt"), "UTF-8"), "first changed");
+                Assert.assertEquals(new String(x.getFileData("data/c.txt"), "UTF-8"), "third");
+                Assert.assertEquals(new String(x.getFileData("data/d.txt"), "UTF-8"), "keep");
+                Assert.assertNull(x.getNode("data/sub"));
+                Assert.assertEquals(x.listFiles().length, 3);
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+            if (dest.exists()) {
+                dest.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalDamagedPrevious() throws IOException {
+        File dir = Files.createTempDirectory("jxar").toFile();
+        File dest = new File("test27.xar");
+        try {
+            File a = new File(dir, "a.txt");
+            Files.write(a.toPath(), "unchanged content".getBytes("UTF-8"));
+            runTask(dir, dest);
+
+            long offset;
+            try (Xar x = new Xar(dest, null, true)) {
+                offset = ((FileNode) x.getNode("data/a.txt")).offset;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(dest, "rw")) {
+                raf.seek(8);
+                offset += Xar.HEADER_SIZE + raf.readLong();
+                raf.seek(offset + 4);
+                int b = raf.read();
+                raf.seek(offset + 4);
+                raf.write(b ^ 0xff);
+            }
+            //source is unchanged, but damaged data must not be reused
+            runTask(dir, dest);
+
+            try (Xar x = new Xar(dest, new ExceptionCheckSumErrorHandler(), true)) {
+                Assert.assertTrue(x.verify(Runnable::run).isValid());
+                Assert.assertEquals(new String(x.getFileData("data/a.txt"), "UTF-8"), "unchanged content");
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+            if (dest.exists()) {
+                dest.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalNoCompressChanged() throws IOException {
+        File dir = Files.createTempDirectory("jxar").toFile();
+        File dest = new File("test29.xar");
+        try {
+            Files.write(new File(dir, "a.txt").toPath(), "text content".getBytes("UTF-8"));
+            Files.write(new File(dir, "b.bin").toPath(), "binary content".getBytes("UTF-8"));
+            runTask(dir, dest);
+            //unchanged files follow the new pattern
+            for (String noCompress : new String[]{"\\.txt$", "\\.bin$", null}) {
+                runTask(dir, dest, noCompress);
+                try (Xar x = new Xar(dest, new ExceptionCheckSumErrorHandler(), true)) {
+                    Assert.assertTrue(x.verify(Runnable::run).isValid());
+                    for (String name : new String[]{"a.txt", "b.bin"}) {
+                        boolean stored = noCompress != null && name.matches(".*" + noCompress);
+                        Assert.assertEquals(((FileNode) x.getNode("data/" + name)).encoding.getSimpleName(), stored ? "none" : "gzip");
+                    }
+                    Assert.assertEquals(new String(x.getFileData("data/a.txt"), "UTF-8"), "text content");
+                }
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+            if (dest.exists()) {
+                dest.delete();
+            }
+        }
+    }
+}